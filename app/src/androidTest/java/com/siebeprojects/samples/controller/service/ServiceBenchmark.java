@@ -0,0 +1,417 @@
+/*
+ * This file is part of Siebe Projects samples.
+ *
+ * Siebe Projects samples is free software: you can redistribute it and/or modify
+ * it under the terms of the Lesser GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Siebe Projects samples is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Lesser GNU General Public License for more details.
+ *
+ * You should have received a copy of the Lesser GNU General Public License
+ * along with Siebe Projects samples.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.siebeprojects.samples.controller.service;
+
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The microbenchmarks of the request and response hot path. The benchmarks run
+ * on the device against the real Android classes as an instrumentation test,
+ * they are started with
+ * adb shell am instrument -w -r -e class com.siebeprojects.samples.controller.service.ServiceBenchmark
+ *     com.siebeprojects.samples.controller.test/android.support.test.runner.AndroidJUnitRunner
+ * and report their results as JSON in the benchmark status of the instrumentation.
+ * Every benchmark is calibrated to a batch of operations taking at least
+ * SAMPLE_NANOS, the batch is warmed up and then measured SAMPLES times.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ServiceBenchmark {
+
+    /** The version of the result format */
+    private final static int VERSION = 1;
+
+    /** The number of warm-up and measured batches */
+    private final static int WARMUPS = 10;
+    private final static int SAMPLES = 30;
+
+    /** The minimum duration of a batch */
+    private final static long SAMPLE_NANOS = 2000000;
+
+    /** The payload sizes in characters */
+    private final static int[] PAYLOAD_SIZES = { 16, 1024, 16 * 1024 };
+
+    /** The numbers of observers notified of a response */
+    private final static int[] OBSERVER_COUNTS = { 1, 8, 64 };
+
+    /** The key of the results in the status of the instrumentation */
+    private final static String KEY_RESULTS = "benchmark";
+
+    /**
+     * An operation that is measured
+     */
+    private interface Operation {
+
+        /**
+         * Run the operation once
+         */
+        void run();
+    }
+
+    /** The results of the benchmarks */
+    private final JSONArray results;
+
+    /** Written by the operations so their results are never optimised away */
+    private Object sink;
+
+    /**
+     * Construct a new ServiceBenchmark
+     */
+    public ServiceBenchmark() {
+        results = new JSONArray();
+    }
+
+    /**
+     * Run all benchmarks and report the results in JSON format
+     */
+    @Test
+    public void run() throws JSONException {
+
+        benchmarkRequests();
+        benchmarkParcels();
+        benchmarkWireFormat();
+        benchmarkObservers();
+        benchmarkReverse();
+
+        JSONObject json = new JSONObject();
+        json.put("version", VERSION);
+        json.put("device", Build.MANUFACTURER + " " + Build.MODEL);
+        json.put("sdk", Build.VERSION.SDK_INT);
+        json.put("results", results);
+
+        Bundle status = new Bundle();
+        status.putString(KEY_RESULTS, json.toString(2));
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, status);
+    }
+
+    /**
+     * Benchmark the creation of requests, including the generation of their ids,
+     * and the reuse of pooled requests
+     */
+    private void benchmarkRequests() throws JSONException {
+
+        final String text = createText(PAYLOAD_SIZES[0]);
+        measure("request.create", new JSONObject(), new Operation() {
+                @Override
+                public void run() {
+                    ServiceRequest request = new ServiceRequest(ServiceRequest.REQ_REVERSE_TEXT);
+                    request.data.putString(ServiceRequest.KEY_DATA, text);
+                    sink = request;
+                }
+            });
+        measure("request.obtain", new JSONObject(), new Operation() {
+                @Override
+                public void run() {
+                    ServiceRequest request = ServiceRequest.obtain(ServiceRequest.REQ_REVERSE_TEXT);
+                    request.data.putString(ServiceRequest.KEY_DATA, text);
+                    sink = request;
+                    request.recycle();
+                }
+            });
+    }
+
+    /**
+     * Benchmark the parcel round trips of requests and responses
+     */
+    private void benchmarkParcels() throws JSONException {
+
+        for (int size : PAYLOAD_SIZES) {
+            final ServiceRequest request = new ServiceRequest(ServiceRequest.REQ_REVERSE_TEXT);
+            request.data.putString(ServiceRequest.KEY_DATA, createText(size));
+            measure("request.parcel", params(size, parcelSize(request)), new Operation() {
+                    @Override
+                    public void run() {
+                        Parcel parcel = Parcel.obtain();
+                        request.writeToParcel(parcel, 0);
+                        parcel.setDataPosition(0);
+                        sink = ServiceRequest.CREATOR.createFromParcel(parcel);
+                        parcel.recycle();
+                    }
+                });
+
+            final ServiceResponse response = new ServiceResponse(request.id);
+            response.data.putString(ServiceResponse.KEY_DATA, createText(size));
+            measure("response.parcel", params(size, parcelSize(response)), new Operation() {
+                    @Override
+                    public void run() {
+                        Parcel parcel = Parcel.obtain();
+                        response.writeToParcel(parcel, 0);
+                        parcel.setDataPosition(0);
+                        sink = ServiceResponse.CREATOR.createFromParcel(parcel);
+                        parcel.recycle();
+                    }
+                });
+        }
+    }
+
+    /**
+     * Benchmark the round trips of data bundles in the compact wire format
+     * against the round trips of the same bundles parcelled as a Bundle
+     */
+    private void benchmarkWireFormat() throws JSONException {
+
+        for (int size : PAYLOAD_SIZES) {
+            final Bundle data = new Bundle();
+            data.putString(ServiceRequest.KEY_DATA, createText(size));
+            data.putInt(ServiceRequest.KEY_CHUNK_SIZE, size / 4);
+
+            measure("wire.bundle", params(size, wireSize(data, false)), new Operation() {
+                    @Override
+                    public void run() {
+                        sink = roundTrip(data, false);
+                    }
+                });
+            measure("wire.compact", params(size, wireSize(data, true)), new Operation() {
+                    @Override
+                    public void run() {
+                        sink = roundTrip(data, true);
+                    }
+                });
+        }
+    }
+
+    /**
+     * Benchmark the notification of observers, no activity is running during 
+     * the test so only the observers of the benchmark are added to the controller.
+     * The observers are called on the measuring thread.
+     */
+    private void benchmarkObservers() throws JSONException {
+
+        final ServiceController controller = ServiceController.getSingleton();
+        for (int count : OBSERVER_COUNTS) {
+            ArrayList<ServiceObserver> observers = new ArrayList<ServiceObserver>(count);
+            for (int i = 0; i < count; i++) {
+                ServiceObserver observer = new ServiceObserver() {
+                        @Override
+                        public void onServiceRequestCompleted(ServiceResponse response) {
+                            sink = response;
+                        }
+                    };
+                observers.add(observer);
+                controller.addObserver(observer, null);
+            }
+            final ServiceRequest request = new ServiceRequest(ServiceRequest.REQ_REVERSE_TEXT);
+            final ServiceResponse response = new ServiceResponse(request.id);
+
+            JSONObject params = new JSONObject();
+            params.put("observers", count);
+            try {
+                measure("controller.notify", params, new Operation() {
+                        @Override
+                        public void run() {
+                            controller.notifyObservers(request, response);
+                        }
+                    });
+            } finally {
+                for (ServiceObserver observer : observers) {
+                    controller.removeObserver(observer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Benchmark the reverse handler of the service
+     */
+    private void benchmarkReverse() throws JSONException {
+
+        for (int size : PAYLOAD_SIZES) {
+            final String text = createText(size);
+            JSONObject params = new JSONObject();
+            params.put("chars", size);
+            measure("handler.reverse", params, new Operation() {
+                    @Override
+                    public void run() {
+                        sink = ServiceHandler.reverse(text);
+                    }
+                });
+        }
+    }
+
+    /**
+     * Measure the operation and add its result
+     *
+     * @param name      The name of the benchmark
+     * @param params    The parameters of the benchmark
+     * @param operation The operation to measure
+     */
+    private void measure(String name, JSONObject params, Operation operation) throws JSONException {
+
+        int batch = 1;
+        while (runBatch(operation, batch) < SAMPLE_NANOS) {
+            batch <<= 1;
+        }
+        for (int i = 0; i < WARMUPS; i++) {
+            runBatch(operation, batch);
+        }
+        long[] samples = new long[SAMPLES];
+        long total = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            samples[i] = runBatch(operation, batch) / batch;
+            total += samples[i];
+        }
+        Arrays.sort(samples);
+
+        JSONObject result = new JSONObject();
+        result.put("name", name);
+        result.put("params", params);
+        result.put("batch", batch);
+        result.put("samples", SAMPLES);
+        result.put("meanNs", total / SAMPLES);
+        result.put("minNs", samples[0]);
+        result.put("p50Ns", samples[SAMPLES / 2]);
+        result.put("p99Ns", samples[(SAMPLES * 99 - 1) / 100]);
+        result.put("maxNs", samples[SAMPLES - 1]);
+        results.put(result);
+    }
+
+    /**
+     * Run the operation the given number of times
+     *
+     * @param operation The operation to run
+     * @param count     The number of times to run the operation
+     *
+     * @return The elapsed time in nanoseconds
+     */
+    private static long runBatch(Operation operation, int count) {
+
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            operation.run();
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Create the parameters of a parcel benchmark
+     *
+     * @param chars The number of characters of the payload
+     * @param bytes The parcelled size in bytes
+     *
+     * @return The parameters
+     */
+    private static JSONObject params(int chars, int bytes) throws JSONException {
+        JSONObject params = new JSONObject();
+        params.put("chars", chars);
+        params.put("bytes", bytes);
+        return params;
+    }
+
+    /**
+     * Write the data bundle to a parcel and read it back, the bundle read back
+     * is unparcelled so both formats are measured including their decoding
+     *
+     * @param data      The data bundle
+     * @param compact   true to use the compact wire format
+     *
+     * @return The bundle read back
+     */
+    private static Bundle roundTrip(Bundle data, boolean compact) {
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            if (compact) {
+                WireFormat.writeData(parcel, data);
+            } else {
+                WireFormat.writeBundle(parcel, data);
+            }
+            parcel.setDataPosition(0);
+            Bundle copy = WireFormat.readData(parcel);
+            copy.size();
+            return copy;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Get the parcelled size of the data bundle
+     *
+     * @param data      The data bundle
+     * @param compact   true to use the compact wire format
+     *
+     * @return The size in bytes
+     */
+    private static int wireSize(Bundle data, boolean compact) {
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            if (compact) {
+                WireFormat.writeData(parcel, data);
+            } else {
+                WireFormat.writeBundle(parcel, data);
+            }
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Get the parcelled size of the Parcelable
+     *
+     * @param parcelable The Parcelable
+     *
+     * @return The size in bytes
+     */
+    private static int parcelSize(Parcelable parcelable) {
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcelable.writeToParcel(parcel, 0);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Create a text of the given length containing a mix of characters,
+     * including surrogate pairs
+     *
+     * @param length The length of the text
+     *
+     * @return The text
+     */
+    private static String createText(int length) {
+
+        StringBuilder sb = new StringBuilder(length);
+        while (sb.length() < length) {
+            if (sb.length() % 32 == 30) {
+                sb.appendCodePoint(0x1F600);
+            } else {
+                sb.append((char)('a' + sb.length() % 26));
+            }
+        }
+        sb.setLength(length);
+        return sb.toString();
+    }
+}
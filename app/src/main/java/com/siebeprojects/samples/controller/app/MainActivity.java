@@ -22,6 +22,8 @@ import android.os.Bundle;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
 
+import java.util.Random;
+
 import com.siebeprojects.samples.controller.service.ServiceController;
 import com.siebeprojects.samples.controller.service.ServiceObserver;
 import com.siebeprojects.samples.controller.service.ServiceResponse;
@@ -37,9 +39,27 @@ public final class MainActivity extends AppCompatActivity {
     /** Tag for logging */
     private final static String TAG = "sample_MainActivity";
 
+    /** The key of the pending request id in the saved instance state */
+    private final static String KEY_REQUESTID = "requestid";
+
+    /** The key of the token of the process that saved the request id */
+    private final static String KEY_PROCESS = "process";
+
+    /** The key of the completed flag in the saved instance state */
+    private final static String KEY_COMPLETED = "completed";
+
+    /** 
+     * The token of this process, request ids are only unique within a process 
+     * so a saved request id is dropped when the process has been recreated 
+     */
+    private final static long PROCESS_TOKEN = new Random().nextLong();
+
     /** The request id that is pending */
     private int requestId;
 
+    /** Has the response of the request been delivered */
+    private boolean completed;
+
     /** The service observer */
     private ServiceObserver observer;
 
@@ -53,6 +73,12 @@ public final class MainActivity extends AppCompatActivity {
         // initialise the service observer
         ServiceController.getSingleton().init(this);
         initServiceObserver();
+        if (savedInstanceState != null) {
+            completed = savedInstanceState.getBoolean(KEY_COMPLETED);
+            if (savedInstanceState.getLong(KEY_PROCESS) == PROCESS_TOKEN) {
+                requestId = savedInstanceState.getInt(KEY_REQUESTID);
+            }
+        }
 
         setContentView(R.layout.main_activity);
     }
@@ -63,7 +89,7 @@ public final class MainActivity extends AppCompatActivity {
     @Override
     public void onPause() {
         super.onPause();
-        ServiceController.getSingleton().removeObserver(observer);
+        ServiceController.getSingleton().removeObserver(requestId, observer);
     }
 
     /**
@@ -72,9 +98,28 @@ public final class MainActivity extends AppCompatActivity {
     @Override
     public void onResume() {
         super.onResume();
+
+        // reclaim the response of the request send before the pause, 
+        // the text is only send again when its response is gone
+        if (completed) {
+            return;
+        }
         ServiceController controller = ServiceController.getSingleton();
-        controller.addObserver(observer);
-        requestId = controller.reverse("reverse this text");
+        if (requestId == 0 || !controller.addObserver(requestId, observer)) {
+            requestId = controller.reverse("reverse this text");
+            controller.addObserver(requestId, observer);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putInt(KEY_REQUESTID, requestId);
+        outState.putLong(KEY_PROCESS, PROCESS_TOKEN);
+        outState.putBoolean(KEY_COMPLETED, completed);
     }
 
     /** 
@@ -100,7 +145,10 @@ public final class MainActivity extends AppCompatActivity {
 
         Log.i(TAG, "onServiceRequestCompleted: " + response);
         if (response.isRequest(this.requestId)) {
+            // the response has been consumed, a later resume must neither
+            // reclaim it nor send the text again
             this.requestId = 0;
+            this.completed = true;
             String data = response.data.getString(ServiceResponse.KEY_DATA);
             Log.i(TAG, "ServiceController response: " + data);
         }
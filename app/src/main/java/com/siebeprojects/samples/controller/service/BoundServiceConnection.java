@@ -0,0 +1,209 @@
+/*
+ * This file is part of Siebe Projects samples.
+ *
+ * Siebe Projects samples is free software: you can redistribute it and/or modify
+ * it under the terms of the Lesser GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Siebe Projects samples is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Lesser GNU General Public License for more details.
+ *
+ * You should have received a copy of the Lesser GNU General Public License
+ * along with Siebe Projects samples.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.siebeprojects.samples.controller.service;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+
+import android.util.Log;
+
+/**
+ * The persistent connection to the bound SampleService or one of its shards. Requests are send
+ * through the Messenger of the service and all responses are received by one
+ * reply Messenger, no ResultReceiver is created per request.
+ */
+final class BoundServiceConnection implements ServiceConnection {
+
+    private final static String TAG     = "sample_BoundServiceConnection";
+
+    /**
+     * The listener receiving the responses from the service.
+     */
+    interface Listener {
+
+        /**
+         * Called on the thread of the looper when a response is received
+         *
+         * @param requestId The id of the request that is completed
+         * @param bundle    The bundle containing the response data
+         */
+        void onResponse(int requestId, Bundle bundle);
+
+        /**
+         * Called on the main thread when the connection to the service is lost,
+         * requests send through this connection will not receive a response.
+         */
+        void onDisconnected();
+    }
+
+    /** The class of the bound service */
+    private final Class<?> serviceClass;
+
+    /** The listener receiving the responses */
+    private final Listener listener;
+
+    /** The Messenger receiving the responses, shared by all requests */
+    private final Messenger replyTo;
+
+    /** The Messenger of the bound service, null when not connected */
+    private volatile Messenger service;
+
+    /** Is this connection bound to the service */
+    private boolean bound;
+
+    /**
+     * Construct a new BoundServiceConnection
+     *
+     * @param serviceClass The class of the service to bind
+     * @param looper       The looper of the thread receiving the responses
+     * @param listener     The listener receiving the responses
+     */
+    BoundServiceConnection(Class<?> serviceClass, Looper looper, final Listener listener) {
+
+        this.serviceClass = serviceClass;
+        this.listener = listener;
+
+        Handler handler = new Handler(looper) {
+                @Override
+                public void handleMessage(Message msg) {
+                    if (msg.what == SampleService.MSG_RESPONSE) {
+                        Bundle data = msg.getData();
+                        data.setClassLoader(ServiceResponse.class.getClassLoader());
+                        listener.onResponse(msg.arg1, data);
+                    }
+                }
+            };
+        replyTo = new Messenger(handler);
+    }
+
+    /**
+     * Bind to the service, requests can be send once the service is connected.
+     *
+     * @param context The context used to bind the service
+     */
+    synchronized void bind(Context context) {
+
+        if (!bound) {
+            Intent intent = new Intent(context, serviceClass);
+            bound = context.bindService(intent, this, Context.BIND_AUTO_CREATE);
+        }
+    }
+
+    /**
+     * Unbind from the service
+     *
+     * @param context The context used to bind the service
+     */
+    synchronized void unbind(Context context) {
+
+        if (bound) {
+            context.unbindService(this);
+            bound = false;
+            service = null;
+        }
+    }
+
+    /**
+     * Check if the service is connected
+     *
+     * @return true when requests can be send, false otherwise
+     */
+    boolean isConnected() {
+        return service != null;
+    }
+
+    /**
+     * Send the request to the connected service
+     *
+     * @param request The request to send
+     *
+     * @return true when the request has been send, false when the service
+     *         is not connected and the request should be send otherwise.
+     */
+    boolean send(ServiceRequest request) {
+
+        Messenger messenger = service;
+        if (messenger == null) {
+            return false;
+        }
+        Bundle data = new Bundle();
+        data.putParcelable(SampleService.KEY_SERVICEREQUEST, request);
+
+        Message msg = Message.obtain(null, SampleService.MSG_REQUEST, request.id, 0);
+        msg.setData(data);
+        msg.replyTo = replyTo;
+        try {
+            messenger.send(msg);
+            return true;
+        } catch (RemoteException e) {
+            Log.w(TAG, "Failed to send " + request, e);
+            service = null;
+            return false;
+        }
+    }
+
+    /**
+     * Cancel the request send through this connection
+     *
+     * @param requestId The id of the request
+     *
+     * @return true when the cancel message has been send, false otherwise
+     */
+    boolean cancel(int requestId) {
+
+        Messenger messenger = service;
+        if (messenger == null) {
+            return false;
+        }
+        try {
+            messenger.send(Message.obtain(null, SampleService.MSG_CANCEL, requestId, 0));
+            return true;
+        } catch (RemoteException e) {
+            Log.w(TAG, "Failed to cancel request " + requestId, e);
+            return false;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onServiceConnected(ComponentName name, IBinder binder) {
+        service = new Messenger(binder);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onServiceDisconnected(ComponentName name) {
+        Log.w(TAG, "Service disconnected: " + name);
+        service = null;
+        listener.onDisconnected();
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * This file is part of Siebe Projects samples.
+ *
+ * Siebe Projects samples is free software: you can redistribute it and/or modify
+ * it under the terms of the Lesser GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Siebe Projects samples is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Lesser GNU General Public License for more details.
+ *
+ * You should have received a copy of the Lesser GNU General Public License
+ * along with Siebe Projects samples.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.siebeprojects.samples.controller.service;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The batcher collecting the completed responses of main thread observers.
+ * The collected responses are dispatched once per frame or per interval, every
+ * observer receives its responses as a list. A dispatch stops calling observers
+ * once its time budget is spent, the remaining responses are dispatched with
+ * the next batch so the main thread is never starved. Frames are aligned with
+ * the Choreographer from Jelly Bean on, older versions use a fixed interval.
+ */
+final class DeliveryBatcher {
+
+    /** The interval in milliseconds used for frames without a Choreographer */
+    private final static long FRAME_INTERVAL = 16;
+
+    /** The handler of the main thread */
+    private final Handler handler;
+
+    /** The task dispatching the batch */
+    private final Runnable dispatchTask;
+
+    /** The task scheduling the next frame, posted from other threads */
+    private final Runnable frameTask;
+
+    /** The frame callback dispatching the batch, null without a Choreographer */
+    private final FrameScheduler frameScheduler;
+
+    /** The observers and their responses in order of completion */
+    private ArrayList<ServiceObserver> observers;
+    private ArrayList<ServiceResponse> responses;
+
+    /** The interval in milliseconds between batches, 0 to dispatch once per frame */
+    private final long interval;
+
+    /** The maximum time in milliseconds of a dispatch */
+    private final long budget;
+
+    /** Is a dispatch scheduled */
+    private boolean scheduled;
+
+    /**
+     * Construct a new DeliveryBatcher
+     *
+     * @param handler   The handler of the main thread
+     * @param interval  The interval between batches, 0 for once per frame
+     * @param budget    The maximum time of a dispatch
+     */
+    DeliveryBatcher(Handler handler, long interval, long budget) {
+
+        this.handler = handler;
+        this.interval = interval;
+        this.budget = budget;
+        this.observers = new ArrayList<ServiceObserver>();
+        this.responses = new ArrayList<ServiceResponse>();
+        this.dispatchTask = new Runnable() {
+                @Override
+                public void run() {
+                    dispatch();
+                }
+            };
+        this.frameTask = new Runnable() {
+                @Override
+                public void run() {
+                    frameScheduler.schedule();
+                }
+            };
+        this.frameScheduler = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN
+            ? new FrameScheduler(dispatchTask) : null;
+    }
+
+    /**
+     * Add the completed response of the main thread observer
+     *
+     * @param observer  The observer to call
+     * @param response  The completed response
+     */
+    void add(ServiceObserver observer, ServiceResponse response) {
+
+        synchronized (this) {
+            observers.add(observer);
+            responses.add(response);
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+        schedule();
+    }
+
+    /**
+     * Remove all collected responses, a scheduled dispatch finds nothing to do.
+     */
+    synchronized void clear() {
+        observers.clear();
+        responses.clear();
+    }
+
+    /**
+     * Schedule the dispatch of the batch at the next frame or after the interval
+     */
+    private void schedule() {
+
+        if (interval > 0 || frameScheduler == null) {
+            handler.postDelayed(dispatchTask, interval > 0 ? interval : FRAME_INTERVAL);
+        } else if (Looper.myLooper() == Looper.getMainLooper()) {
+            frameScheduler.schedule();
+        } else {
+            // the Choreographer of the main thread can only be used from the main thread
+            handler.post(frameTask);
+        }
+    }
+
+    /**
+     * Call the observers with their collected responses until the budget is spent,
+     * called on the main thread.
+     */
+    private void dispatch() {
+
+        long deadline = SystemClock.uptimeMillis() + budget;
+        ArrayList<ServiceObserver> observers;
+        ArrayList<ServiceResponse> responses;
+        synchronized (this) {
+            observers = this.observers;
+            responses = this.responses;
+            this.observers = new ArrayList<ServiceObserver>();
+            this.responses = new ArrayList<ServiceResponse>();
+        }
+        LinkedHashMap<ServiceObserver, List<ServiceResponse>> batches = new LinkedHashMap<ServiceObserver, List<ServiceResponse>>();
+        for (int i = 0, size = observers.size(); i < size; i++) {
+            List<ServiceResponse> batch = batches.get(observers.get(i));
+            if (batch == null) {
+                batch = new ArrayList<ServiceResponse>();
+                batches.put(observers.get(i), batch);
+            }
+            batch.add(responses.get(i));
+        }
+        Iterator<Map.Entry<ServiceObserver, List<ServiceResponse>>> iterator = batches.entrySet().iterator();
+        while (iterator.hasNext() && SystemClock.uptimeMillis() < deadline) {
+            Map.Entry<ServiceObserver, List<ServiceResponse>> entry = iterator.next();
+            iterator.remove();
+            entry.getKey().onServiceRequestsCompleted(entry.getValue());
+        }
+
+        synchronized (this) {
+            if (!batches.isEmpty()) {
+                // the observers left over go first in the next batch
+                ArrayList<ServiceObserver> leftObservers = new ArrayList<ServiceObserver>();
+                ArrayList<ServiceResponse> leftResponses = new ArrayList<ServiceResponse>();
+                for (Map.Entry<ServiceObserver, List<ServiceResponse>> entry : batches.entrySet()) {
+                    for (ServiceResponse response : entry.getValue()) {
+                        leftObservers.add(entry.getKey());
+                        leftResponses.add(response);
+                    }
+                }
+                leftObservers.addAll(this.observers);
+                leftResponses.addAll(this.responses);
+                this.observers = leftObservers;
+                this.responses = leftResponses;
+            }
+            if (this.observers.isEmpty()) {
+                scheduled = false;
+                return;
+            }
+        }
+        schedule();
+    }
+
+    /**
+     * The frame callback of the Choreographer, only created from Jelly Bean on
+     */
+    private final static class FrameScheduler implements Choreographer.FrameCallback {
+
+        /** The task to run at the next frame */
+        private final Runnable task;
+
+        FrameScheduler(Runnable task) {
+            this.task = task;
+        }
+
+        void schedule() {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            task.run();
+        }
+    }
+}
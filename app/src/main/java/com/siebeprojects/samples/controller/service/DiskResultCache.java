@@ -0,0 +1,649 @@
+/*
+ * This file is part of Siebe Projects samples.
+ *
+ * Siebe Projects samples is free software: you can redistribute it and/or modify
+ * it under the terms of the Lesser GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Siebe Projects samples is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Lesser GNU General Public License for more details.
+ *
+ * You should have received a copy of the Lesser GNU General Public License
+ * along with Siebe Projects samples.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.siebeprojects.samples.controller.service;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+
+/**
+ * The least recently used cache of responses stored on disk, the second tier
+ * below the ResultCache. Every response is stored in its own file named by the
+ * 64 bit hash of the request key, the file holds the full key and a CRC32 of its 
+ * content. The data of the response is stored in the versioned wire format.
+ * A file that is corrupt or belongs to another key is skipped and deleted.
+ * The index of the files is keyed by the hash, it is kept in memory and read in 
+ * the background when the cache is opened, until then every lookup is a miss. 
+ * All file access is done on a single background thread.
+ */
+public final class DiskResultCache {
+
+    private final static String TAG     = "sample_DiskResultCache";
+
+    /** The default maximum total size of the files */
+    public final static long DEFAULT_MAX_BYTES  = 4 * 1024 * 1024;
+
+    /** The header of a cache file */
+    private final static int MAGIC      = 0x53524331;
+    private final static int VERSION    = 2;
+
+    /** The suffix of files that are being written */
+    private final static String SUFFIX_TMP = ".tmp";
+
+    /** The length of the file names, 16 hexadecimal digits */
+    private final static int NAME_LENGTH = 16;
+
+    /**
+     * The callback receiving the result of a lookup
+     */
+    interface Callback {
+
+        /**
+         * Called from the cache thread when the lookup has completed
+         *
+         * @param response The cached response or null if not found
+         */
+        void onResult(ServiceResponse response);
+    }
+
+    /** The sizes of the files by key hash in access order, the eldest file is the least recently used */
+    private final LinkedHashMap<Long, Long> index;
+
+    /** The directory of the files, null when closed */
+    private File dir;
+
+    /** The thread accessing the files, null when closed */
+    private ExecutorService executor;
+
+    /** The maximum total size of the files in bytes */
+    private long maxBytes;
+
+    /** The total size of the files in bytes */
+    private long bytes;
+
+    /** The statistics of this cache */
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long corrupted;
+
+    /**
+     * Construct a new DiskResultCache with the default size
+     */
+    DiskResultCache() {
+        index = new LinkedHashMap<Long, Long>(16, 0.75f, true);
+        maxBytes = DEFAULT_MAX_BYTES;
+    }
+
+    /**
+     * Set the maximum total size of the files, files exceeding the new size are 
+     * deleted in the background.
+     *
+     * @param maxBytes The maximum size in bytes, 0 disables the cache
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Size cannot be negative");
+        }
+        this.maxBytes = maxBytes;
+        execute(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (DiskResultCache.this) {
+                        trim();
+                    }
+                }
+            });
+    }
+
+    /**
+     * Get the number of requests that were answered from this cache
+     *
+     * @return The number of hits
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Get the number of lookups that did not find a valid file
+     *
+     * @return The number of misses
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Get the number of files deleted to stay within the maximum size
+     *
+     * @return The number of evictions
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * Get the number of files that were skipped because they were corrupt
+     *
+     * @return The number of corrupt files
+     */
+    public synchronized long getCorruptCount() {
+        return corrupted;
+    }
+
+    /**
+     * Get the number of files in this cache
+     *
+     * @return The number of files
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Get the total size of the files in this cache
+     *
+     * @return The size in bytes
+     */
+    public synchronized long sizeInBytes() {
+        return bytes;
+    }
+
+    /**
+     * Delete all files of this cache, the statistics are kept.
+     */
+    public synchronized void clear() {
+
+        final Long[] hashes = index.keySet().toArray(new Long[index.size()]);
+        index.clear();
+        bytes = 0;
+        execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (Long hash : hashes) {
+                        delete(hash);
+                    }
+                }
+            });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("DiskResultCache[files: ");
+        sb.append(index.size());
+        sb.append(",bytes: ");
+        sb.append(bytes);
+        sb.append(",hits: ");
+        sb.append(hits);
+        sb.append(",misses: ");
+        sb.append(misses);
+        sb.append(",evictions: ");
+        sb.append(evictions);
+        sb.append(",corrupted: ");
+        sb.append(corrupted);
+        sb.append("]");
+        return sb.toString();
+    }
+
+    /**
+     * Open this cache in the directory, the index is read in the background.
+     *
+     * @param dir The directory of the files
+     */
+    synchronized void open(File dir) {
+
+        if (this.dir != null) {
+            return;
+        }
+        this.dir = dir;
+        this.executor = Executors.newSingleThreadExecutor();
+        execute(new Runnable() {
+                @Override
+                public void run() {
+                    loadIndex();
+                }
+            });
+    }
+
+    /**
+     * Close this cache, writes that have not started yet are dropped.
+     */
+    synchronized void close() {
+
+        if (executor != null) {
+            executor.shutdown();
+        }
+        executor = null;
+        dir = null;
+        index.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Check if the response of the request may be stored in this cache,
+     * only the index in memory is checked.
+     *
+     * @param key The key of the request
+     *
+     * @return true when a file exists for the key
+     */
+    synchronized boolean contains(String key) {
+        return index.containsKey(hashOf(key));
+    }
+
+    /**
+     * Read the response of the request with the given key in the background
+     *
+     * @param key       The key of the request
+     * @param callback  The callback receiving the response
+     *
+     * @return true when the lookup has been started, false when this cache is closed
+     */
+    synchronized boolean get(final String key, final Callback callback) {
+
+        return execute(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onResult(read(key));
+                }
+            });
+    }
+
+    /**
+     * Store the response of the request with the given key in the background,
+     * nothing is written when a file exists for the key.
+     *
+     * @param key       The key of the request
+     * @param response  The response to store, must not be changed afterwards
+     */
+    synchronized void put(final String key, final ServiceResponse response) {
+
+        // the responses of cacheable requests never change, a stored file is kept
+        if (maxBytes == 0 || index.containsKey(hashOf(key))) {
+            return;
+        }
+        execute(new Runnable() {
+                @Override
+                public void run() {
+                    write(key, response);
+                }
+            });
+    }
+
+    /**
+     * Run the task on the cache thread
+     *
+     * @param task The task to run
+     *
+     * @return true when the task has been accepted, false when this cache is closed
+     */
+    private boolean execute(Runnable task) {
+
+        if (executor == null) {
+            return false;
+        }
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Read the files in the directory into the index, the least recently
+     * modified file becomes the eldest entry. Unfinished files are deleted.
+     */
+    private void loadIndex() {
+
+        File dir;
+        synchronized (this) {
+            dir = this.dir;
+        }
+        if (dir == null || (!dir.isDirectory() && !dir.mkdirs())) {
+            return;
+        }
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        final long[] modified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            modified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer lhs, Integer rhs) {
+                    long diff = modified[lhs] - modified[rhs];
+                    return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+                }
+            });
+        synchronized (this) {
+            if (this.dir != dir) {
+                return;
+            }
+            for (Integer i : order) {
+                File file = files[i];
+                long hash = parseName(file.getName());
+                if (hash == 0) {
+                    file.delete();
+                    continue;
+                }
+                Long old = index.put(hash, file.length());
+                if (old != null) {
+                    bytes -= old;
+                }
+                bytes += file.length();
+            }
+            trim();
+        }
+    }
+
+    /**
+     * Read the response from its file, a corrupt file is deleted
+     *
+     * @param key The key of the request
+     *
+     * @return The response or null if not found
+     */
+    private ServiceResponse read(String key) {
+
+        long hash = hashOf(key);
+        File file;
+        synchronized (this) {
+            if (dir == null || index.get(hash) == null) {
+                misses++;
+                return null;
+            }
+            file = new File(dir, nameOf(hash));
+        }
+        ServiceResponse response = null;
+        try {
+            response = readFile(file, key);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read " + file, e);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to decode " + file, e);
+        }
+        synchronized (this) {
+            if (response == null) {
+                misses++;
+                corrupted++;
+                remove(hash);
+                return null;
+            }
+            hits++;
+        }
+        // the modification time keeps the order of use for the next index
+        file.setLastModified(System.currentTimeMillis());
+        return response;
+    }
+
+    /**
+     * Write the response to its file, the file is written under a temporary
+     * name and renamed when complete.
+     *
+     * @param key       The key of the request
+     * @param response  The response to write
+     */
+    private void write(String key, ServiceResponse response) {
+
+        long hash = hashOf(key);
+        File file;
+        synchronized (this) {
+            if (dir == null) {
+                return;
+            }
+            file = new File(dir, nameOf(hash));
+        }
+        File tmp = new File(file.getPath() + SUFFIX_TMP);
+        long size;
+        try {
+            size = writeFile(tmp, key, response);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write " + file, e);
+            tmp.delete();
+            return;
+        }
+        if (size < 0) {
+            // the data is outside of the schemas of the wire format
+            return;
+        }
+        synchronized (this) {
+            if (size > maxBytes || !tmp.renameTo(file)) {
+                tmp.delete();
+                return;
+            }
+            Long old = index.put(hash, size);
+            if (old != null) {
+                bytes -= old;
+            }
+            bytes += size;
+            trim();
+        }
+    }
+
+    /**
+     * Delete the least recently used files until this cache is within its maximum size,
+     * only called on the cache thread.
+     */
+    private void trim() {
+
+        Iterator<Map.Entry<Long, Long>> iterator = index.entrySet().iterator();
+        while (iterator.hasNext() && bytes > maxBytes) {
+            Map.Entry<Long, Long> entry = iterator.next();
+            bytes -= entry.getValue();
+            iterator.remove();
+            evictions++;
+            delete(entry.getKey());
+        }
+    }
+
+    /**
+     * Remove the file from the index and delete it
+     *
+     * @param hash The hash of the key of the file
+     */
+    private void remove(long hash) {
+
+        Long size = index.remove(hash);
+        if (size != null) {
+            bytes -= size;
+        }
+        delete(hash);
+    }
+
+    /**
+     * Delete the file
+     *
+     * @param hash The hash of the key of the file
+     */
+    private void delete(long hash) {
+
+        File dir = this.dir;
+        if (dir != null) {
+            new File(dir, nameOf(hash)).delete();
+        }
+    }
+
+    /**
+     * Read the response of the request with the given key from the file
+     *
+     * @param file  The file
+     * @param key   The key of the request
+     *
+     * @return The response or null if the file is corrupt or belongs to another key
+     */
+    private static ServiceResponse readFile(File file, String key) throws IOException {
+
+        byte[] body;
+        int checksum;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            checksum = in.readInt();
+            int length = in.readInt();
+            if (length <= 0 || length > file.length()) {
+                return null;
+            }
+            body = new byte[length];
+            in.readFully(body);
+        } finally {
+            in.close();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        if ((int)crc.getValue() != checksum) {
+            return null;
+        }
+        // keys with the same hash share the file, the stored key must be equal
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(body));
+        if (!key.equals(data.readUTF())) {
+            return null;
+        }
+        ServiceResponse response = new ServiceResponse(0);
+        response.status = data.readInt();
+        int remaining = data.available();
+        response.data = WireFormat.decodeVersioned(body, body.length - remaining, remaining);
+        return response;
+    }
+
+    /**
+     * Write the response of the request with the given key to the file
+     *
+     * @param file      The file
+     * @param key       The key of the request
+     * @param response  The response
+     *
+     * @return The size of the file in bytes, -1 if the data cannot be stored
+     */
+    private static long writeFile(File file, String key, ServiceResponse response) throws IOException {
+
+        byte[] encoded = WireFormat.encodeVersioned(response.data);
+        if (encoded == null) {
+            return -1;
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(64 + encoded.length);
+        DataOutputStream data = new DataOutputStream(bos);
+        data.writeUTF(key);
+        data.writeInt(response.status);
+        data.write(encoded);
+        data.close();
+        byte[] body = bos.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(body);
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt((int)crc.getValue());
+            out.writeInt(body.length);
+            out.write(body);
+        } finally {
+            out.close();
+        }
+        return 16 + body.length;
+    }
+
+    /**
+     * Get the hash of the request key, the 64 bit FNV-1a hash of the key.
+     * The hash 0 marks an invalid file name and is never returned.
+     *
+     * @param key The key of the request
+     *
+     * @return The hash of the key
+     */
+    private static long hashOf(String key) {
+
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0, length = key.length(); i < length; i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash != 0 ? hash : 1;
+    }
+
+    /**
+     * Get the hash of the key from the name of its file
+     *
+     * @param name The name of the file
+     *
+     * @return The hash or 0 if the name is not the name of a cache file
+     */
+    private static long parseName(String name) {
+
+        if (name.length() != NAME_LENGTH) {
+            return 0;
+        }
+        try {
+            // two halves, a single parse does not accept the full unsigned range
+            return Long.parseLong(name.substring(0, NAME_LENGTH / 2), 16) << 32
+                | Long.parseLong(name.substring(NAME_LENGTH / 2), 16);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Get the name of the file of the key hash, the hash in hexadecimal digits
+     *
+     * @param hash The hash of the key
+     *
+     * @return The name of the file
+     */
+    private static String nameOf(long hash) {
+
+        String hex = Long.toHexString(hash);
+        StringBuilder sb = new StringBuilder(NAME_LENGTH);
+        for (int i = hex.length(); i < NAME_LENGTH; i++) {
+            sb.append('0');
+        }
+        sb.append(hex);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * This file is part of Siebe Projects samples.
+ *
+ * Siebe Projects samples is free software: you can redistribute it and/or modify
+ * it under the terms of the Lesser GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Siebe Projects samples is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Lesser GNU General Public License for more details.
+ *
+ * You should have received a copy of the Lesser GNU General Public License
+ * along with Siebe Projects samples.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.siebeprojects.samples.controller.service;
+
+/**
+ * The registry of the request handlers, indexed by request type. The handlers
+ * are stored in a dense array that is copied on write, a lookup is a single
+ * array access without locking. The reverse handlers are registered by default.
+ * Handlers must be registered in every process executing requests, i.e. in
+ * Application.onCreate when the service runs in separate processes.
+ */
+public final class HandlerRegistry {
+
+    /** The highest request type that can be registered */
+    public final static int MAX_TYPE = 255;
+
+    /** The handlers indexed by request type, replaced when a handler is registered */
+    private static volatile RequestHandler[] handlers = new RequestHandler[ServiceRequest.REQ_REVERSE_TEXT_STREAM + 1];
+
+    static {
+        register(ServiceRequest.REQ_REVERSE_TEXT, ServiceHandler.REVERSE_TEXT);
+        register(ServiceRequest.REQ_REVERSE_TEXT_BATCH, ServiceHandler.REVERSE_TEXT_BATCH);
+        register(ServiceRequest.REQ_REVERSE_TEXT_STREAM, ServiceHandler.REVERSE_TEXT_STREAM);
+    }
+
+    /**
+     * The HandlerRegistry cannot be instantiated
+     */
+    private HandlerRegistry() {
+    }
+
+    /**
+     * Register the handler of the request type, replacing the current handler.
+     * The concurrency of a handler that cannot run in parallel is applied to
+     * services created afterwards.
+     *
+     * @param type      The request type, between 0 and MAX_TYPE
+     * @param handler   The handler, null to remove the handler of the type
+     */
+    public static synchronized void register(int type, RequestHandler handler) {
+
+        if (type < 0 || type > MAX_TYPE) {
+            throw new IllegalArgumentException("Request type must be between 0 and " + MAX_TYPE);
+        }
+        RequestHandler[] current = handlers;
+        RequestHandler[] copy = new RequestHandler[Math.max(current.length, type + 1)];
+        System.arraycopy(current, 0, copy, 0, current.length);
+        copy[type] = handler;
+        handlers = copy;
+    }
+
+    /**
+     * Get the handler of the request type
+     *
+     * @param type The request type
+     *
+     * @return The handler or null if no handler is registered for the type
+     */
+    public static RequestHandler get(int type) {
+
+        RequestHandler[] current = handlers;
+        return type >= 0 && type < current.length ? current[type] : null;
+    }
+
+    /**
+     * Get the handlers of all types
+     *
+     * @return The handlers indexed by request type, must not be changed
+     */
+    static RequestHandler[] getAll() {
+        return handlers;
+    }
+}
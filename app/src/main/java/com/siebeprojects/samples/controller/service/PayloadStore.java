@@ -0,0 +1,246 @@
+/*
+ * This file is part of Siebe Projects samples.
+ *
+ * Siebe Projects samples is free software: you can redistribute it and/or modify
+ * it under the terms of the Lesser GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Siebe Projects samples is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Lesser GNU General Public License for more details.
+ *
+ * You should have received a copy of the Lesser GNU General Public License
+ * along with Siebe Projects samples.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.siebeprojects.samples.controller.service;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * The store for large text payloads. Texts above the threshold are not
+ * parcelled into the bundle, they are written to a memory mapped file in the
+ * cache directory and only the path of the file is stored in the bundle.
+ * The file is readable by every process of the application, so the same
+ * handle works for the Intent, bound and multi process paths.
+ */
+final class PayloadStore {
+
+    private final static String TAG     = "sample_PayloadStore";
+
+    /** The suffix of the bundle key holding the path of an externalized value */
+    final static String SUFFIX_REF          = "#payload";
+
+    /** The directory in the cache directory holding the payload files */
+    private final static String DIRECTORY   = "payloads";
+
+    /** The age after which payload files left behind by a dead process are deleted */
+    private final static long STALE_MILLIS  = 10 * 60 * 1000;
+
+    /** The default number of characters above which texts are externalized */
+    final static int DEFAULT_THRESHOLD      = 64 * 1024;
+
+    /** The number of characters above which texts are externalized, applies to this process */
+    private static volatile int threshold   = DEFAULT_THRESHOLD;
+
+    /**
+     * The PayloadStore cannot be instantiated
+     */
+    private PayloadStore() {
+    }
+
+    /**
+     * Set the number of characters above which texts are externalized
+     *
+     * @param chars The threshold in characters
+     */
+    static void setThreshold(int chars) {
+
+        if (chars < 1) {
+            throw new IllegalArgumentException("Threshold must be at least 1");
+        }
+        threshold = chars;
+    }
+
+    /**
+     * Move all texts in the bundle exceeding the threshold to payload files
+     *
+     * @param context   The context used to obtain the cache directory
+     * @param data      The bundle to externalize
+     */
+    static void externalize(Context context, Bundle data) {
+
+        ArrayList<String> keys = null;
+        for (String key : data.keySet()) {
+            Object value = data.get(key);
+            if (value instanceof String && ((String)value).length() > threshold) {
+                if (keys == null) {
+                    keys = new ArrayList<String>(1);
+                }
+                keys.add(key);
+            }
+        }
+        if (keys == null) {
+            return;
+        }
+        for (String key : keys) {
+            try {
+                File file = write(context, data.getString(key));
+                data.remove(key);
+                data.putString(key + SUFFIX_REF, file.getAbsolutePath());
+            } catch (IOException e) {
+                // the text is kept in the bundle, it may still fit in the transaction
+                Log.w(TAG, "Failed to externalize " + key, e);
+            }
+        }
+    }
+
+    /**
+     * Get the text stored under the key, the text is read from its payload
+     * file when it has been externalized. The bundle is not changed.
+     *
+     * @param data  The bundle containing the text or its handle
+     * @param key   The key of the text
+     *
+     * @return The text or null if not found
+     */
+    static String getString(Bundle data, String key) {
+
+        String path = data.getString(key + SUFFIX_REF);
+        if (path == null) {
+            return data.getString(key);
+        }
+        try {
+            return read(new File(path));
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to read payload of " + key, e);
+        }
+    }
+
+    /**
+     * Replace all handles in the bundle by their texts and delete the payload files
+     *
+     * @param data The bundle to inline
+     */
+    static void inline(Bundle data) {
+
+        for (String ref : refs(data)) {
+            String key = ref.substring(0, ref.length() - SUFFIX_REF.length());
+            File file = new File(data.getString(ref));
+            try {
+                data.putString(key, read(file));
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to read payload of " + key, e);
+            }
+            data.remove(ref);
+            file.delete();
+        }
+    }
+
+    /**
+     * Delete the payload files referenced by the bundle
+     *
+     * @param data The bundle containing handles
+     */
+    static void release(Bundle data) {
+
+        for (String ref : refs(data)) {
+            new File(data.getString(ref)).delete();
+        }
+    }
+
+    /**
+     * Delete the payload files left behind by a process that died before
+     * the files could be released.
+     *
+     * @param context The context used to obtain the cache directory
+     */
+    static void purge(Context context) {
+
+        File[] files = new File(context.getCacheDir(), DIRECTORY).listFiles();
+        if (files == null) {
+            return;
+        }
+        long stale = System.currentTimeMillis() - STALE_MILLIS;
+        for (File file : files) {
+            if (file.lastModified() < stale) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Get the keys of the handles in the bundle
+     *
+     * @param data The bundle
+     *
+     * @return The list of handle keys, may be empty
+     */
+    private static ArrayList<String> refs(Bundle data) {
+
+        ArrayList<String> refs = new ArrayList<String>(0);
+        for (String key : data.keySet()) {
+            if (key.endsWith(SUFFIX_REF)) {
+                refs.add(key);
+            }
+        }
+        return refs;
+    }
+
+    /**
+     * Write the text to a new memory mapped payload file
+     *
+     * @param context   The context used to obtain the cache directory
+     * @param text      The text to write
+     *
+     * @return The payload file
+     */
+    private static File write(Context context, String text) throws IOException {
+
+        File dir = new File(context.getCacheDir(), DIRECTORY);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        File file = File.createTempFile("payload", null, dir);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 2L * text.length());
+            buffer.asCharBuffer().put(text);
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        } finally {
+            raf.close();
+        }
+        return file;
+    }
+
+    /**
+     * Read the text from the memory mapped payload file
+     *
+     * @param file The payload file
+     *
+     * @return The text
+     */
+    private static String read(File file) throws IOException {
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            return buffer.asCharBuffer().toString();
+        } finally {
+            raf.close();
+        }
+    }
+}
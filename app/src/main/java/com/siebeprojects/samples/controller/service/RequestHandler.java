@@ -0,0 +1,112 @@
+/*
+ * This file is part of Siebe Projects samples.
+ *
+ * Siebe Projects samples is free software: you can redistribute it and/or modify
+ * it under the terms of the Lesser GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Siebe Projects samples is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Lesser GNU General Public License for more details.
+ *
+ * You should have received a copy of the Lesser GNU General Public License
+ * along with Siebe Projects samples.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.siebeprojects.samples.controller.service;
+
+/**
+ * The handler of one request type, registered in the HandlerRegistry. A handler
+ * declares how the requests of its type may be treated: whether its responses
+ * depend on nothing but the request data, whether requests may run in parallel
+ * and their expected cost. Handlers are called from the worker threads of the
+ * service and must not keep state between requests.
+ */
+public abstract class RequestHandler {
+
+    /** The responses depend on nothing but the request data and may be cached */
+    public final static int FLAG_CACHEABLE  = 0x01;
+
+    /** Requests of this type may be executed in parallel */
+    public final static int FLAG_PARALLEL   = 0x02;
+
+    /** The expected cost of a request relative to other request types */
+    public final static int COST_LOW        = 1;
+    public final static int COST_NORMAL     = 2;
+    public final static int COST_HIGH       = 4;
+
+    /**
+     * The sink receiving the chunks of streaming requests
+     */
+    public interface ChunkSink {
+
+        /**
+         * Called from the executing thread for every chunk, in order of sequence
+         *
+         * @param request   The streaming request
+         * @param chunk     The chunk of the response
+         */
+        void send(ServiceRequest request, ServiceResponse chunk);
+    }
+
+    /** The flags of this handler */
+    private final int flags;
+
+    /** The expected cost of a request */
+    private final int cost;
+
+    /**
+     * Construct a new RequestHandler
+     *
+     * @param flags The flags of this handler, FLAG_CACHEABLE and FLAG_PARALLEL
+     * @param cost  The expected cost of a request, at least 1
+     */
+    protected RequestHandler(int flags, int cost) {
+
+        if (cost < 1) {
+            throw new IllegalArgumentException("Cost must be at least 1");
+        }
+        this.flags = flags;
+        this.cost = cost;
+    }
+
+    /**
+     * Check if the responses of this handler may be cached
+     *
+     * @return true when the responses depend on nothing but the request data
+     */
+    public final boolean isCacheable() {
+        return (flags & FLAG_CACHEABLE) != 0;
+    }
+
+    /**
+     * Check if requests of this handler may be executed in parallel
+     *
+     * @return true when requests may run in parallel, false when they are
+     *         executed one at a time
+     */
+    public final boolean isParallel() {
+        return (flags & FLAG_PARALLEL) != 0;
+    }
+
+    /**
+     * Get the expected cost of a request of this handler
+     *
+     * @return The cost relative to other request types
+     */
+    public final int getCost() {
+        return cost;
+    }
+
+    /**
+     * Handle the request and store the result in the response. A handler
+     * failing with a RuntimeException completes the request with STATUS_ERROR.
+     *
+     * @param request   The request to handle, must not be changed
+     * @param response  The final response of the request
+     * @param sink      The sink receiving the chunks of a streaming request
+     */
+    public abstract void handle(ServiceRequest request, ServiceResponse response, ChunkSink sink);
+}
@@ -0,0 +1,605 @@
+/*
+ * This file is part of Siebe Projects samples.
+ *
+ * Siebe Projects samples is free software: you can redistribute it and/or modify
+ * it under the terms of the Lesser GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Siebe Projects samples is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Lesser GNU General Public License for more details.
+ *
+ * You should have received a copy of the Lesser GNU General Public License
+ * along with Siebe Projects samples.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.siebeprojects.samples.controller.service;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * The append-only journal of submitted and completed requests, stored in a
+ * memory mapped file. Writes to the mapping survive the death of the process,
+ * they are forced to the storage device in batches so a request never waits
+ * for a sync. Every record holds its length and CRC32, recovery stops at the
+ * first torn or corrupt record. The journal keeps the pending requests and the
+ * last MAX_COMPLETED completed responses, the file is compacted to these live
+ * records when it runs full. The data bundles are stored in the versioned wire
+ * format, requests with data outside of its schemas are not journaled. The
+ * header holds the highest journaled request id, so new ids can be reserved
+ * before the journal has been recovered.
+ */
+final class RequestJournal {
+
+    private final static String TAG     = "sample_RequestJournal";
+
+    /** The header of the journal file */
+    private final static int MAGIC          = 0x534a524e;
+    private final static int VERSION        = 2;
+    private final static int HEADER_SIZE    = 12;
+
+    /** The position of the highest request id in the header */
+    private final static int MAX_ID_OFFSET  = 8;
+
+    /** The size of the length and checksum preceding every record */
+    private final static int RECORD_HEADER  = 8;
+
+    /** The kinds of records */
+    private final static byte RECORD_SUBMITTED  = 1;
+    private final static byte RECORD_COMPLETED  = 2;
+    private final static byte RECORD_REMOVED    = 3;
+
+    /** The initial size of the mapped file */
+    private final static int INITIAL_CAPACITY   = 256 * 1024;
+
+    /** The largest record that is journaled */
+    private final static int MAX_RECORD_SIZE    = 64 * 1024;
+
+    /** The maximum number of completed responses kept for restoring */
+    private final static int MAX_COMPLETED      = 64;
+
+    /** The delay in milliseconds after which appended records are forced to storage */
+    private final static long SYNC_DELAY        = 100;
+
+    /** The journal file */
+    private final File file;
+
+    /** The executor forcing the journal to storage */
+    private final ScheduledExecutorService executor;
+
+    /** The records of the pending requests, keyed by request id */
+    private final LinkedHashMap<Integer, byte[]> pending;
+
+    /** The records of the completed requests, keyed by request id, oldest first */
+    private final LinkedHashMap<Integer, byte[]> completed;
+
+    /** The task forcing the journal to storage */
+    private final Runnable syncTask;
+
+    /** The mapped journal file, null when closed */
+    private MappedByteBuffer buffer;
+
+    /** The number of bytes of records that are no longer live */
+    private int deadBytes;
+
+    /** The highest request id found in the journal */
+    private int maxId;
+
+    /** Is a sync scheduled */
+    private boolean syncScheduled;
+
+    /**
+     * Construct a new RequestJournal
+     *
+     * @param file      The journal file
+     * @param executor  The executor forcing the journal to storage
+     */
+    RequestJournal(File file, ScheduledExecutorService executor) {
+        this.file      = file;
+        this.executor  = executor;
+        this.pending   = new LinkedHashMap<Integer, byte[]>();
+        this.completed = new LinkedHashMap<Integer, byte[]>();
+        this.syncTask  = new Runnable() {
+                @Override
+                public void run() {
+                    sync();
+                }
+            };
+    }
+
+    /**
+     * Open the journal and recover its records, a missing or unreadable
+     * journal is started empty.
+     */
+    synchronized void open() throws IOException {
+
+        if (file.exists()) {
+            recover();
+        }
+        // recovery always ends with a compacted journal, torn records are dropped
+        compact(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Get the highest request id found when the journal was opened
+     *
+     * @return The highest request id, 0 if none
+     */
+    synchronized int getMaxId() {
+        return maxId;
+    }
+
+    /**
+     * Read the highest journaled request id from the header of the journal 
+     * file, without recovering the journal.
+     *
+     * @param file The journal file
+     *
+     * @return The highest request id, 0 if the journal is missing or unreadable
+     */
+    static int readMaxId(File file) {
+
+        if (!file.exists()) {
+            return 0;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    return 0;
+                }
+                return in.readInt();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read the header of " + file, e);
+            return 0;
+        }
+    }
+
+    /**
+     * Get the requests that were pending when the journal was opened
+     *
+     * @return The pending requests in order of submission
+     */
+    synchronized List<ServiceRequest> getPendingRequests() {
+
+        List<ServiceRequest> list = new ArrayList<ServiceRequest>(pending.size());
+        Iterator<Map.Entry<Integer, byte[]>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, byte[]> entry = it.next();
+            try {
+                list.add(decodeRequest(ByteBuffer.wrap(entry.getValue())));
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Dropping unreadable request " + entry.getKey(), e);
+                deadBytes += recordSize(entry.getValue());
+                it.remove();
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Get the responses of the completed requests that have not been removed
+     *
+     * @return The completed responses in order of completion
+     */
+    synchronized List<ServiceResponse> getCompletedResponses() {
+
+        List<ServiceResponse> list = new ArrayList<ServiceResponse>(completed.size());
+        Iterator<Map.Entry<Integer, byte[]>> it = completed.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, byte[]> entry = it.next();
+            try {
+                list.add(decodeResponse(ByteBuffer.wrap(entry.getValue())));
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Dropping unreadable response " + entry.getKey(), e);
+                deadBytes += recordSize(entry.getValue());
+                it.remove();
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Record the submitted request
+     *
+     * @param request The submitted request
+     */
+    synchronized void recordSubmitted(ServiceRequest request) {
+
+        if (buffer == null) {
+            return;
+        }
+        byte[] data = WireFormat.encodeVersioned(request.data);
+        if (data == null) {
+            return;
+        }
+        ByteBuffer body = ByteBuffer.allocate(29 + data.length);
+        body.put(RECORD_SUBMITTED);
+        body.putInt(request.id);
+        body.putInt(request.type);
+        body.putInt(request.priority);
+        // the deadline is stored in wall clock time, the elapsed realtime restarts at boot
+        body.putLong(request.deadline != 0 ? request.deadline - SystemClock.elapsedRealtime() + System.currentTimeMillis() : 0);
+        body.putInt(data.length);
+        body.put(data);
+        if (body.capacity() > MAX_RECORD_SIZE || !reserve(body.capacity())) {
+            return;
+        }
+        byte[] old = pending.put(request.id, body.array());
+        if (old != null) {
+            deadBytes += recordSize(old);
+        }
+        append(body.array());
+        if (request.id > maxId) {
+            maxId = request.id;
+            buffer.putInt(MAX_ID_OFFSET, maxId);
+        }
+    }
+
+    /**
+     * Record the final response of the request, the response is kept for restoring
+     * until it is removed or MAX_COMPLETED newer responses have been recorded.
+     * Only the responses of journaled requests are recorded.
+     *
+     * @param response The final response
+     */
+    synchronized void recordCompleted(ServiceResponse response) {
+
+        if (buffer == null || !pending.containsKey(response.requestId)) {
+            return;
+        }
+        byte[] data = WireFormat.encodeVersioned(response.data);
+        if (data == null) {
+            // outside of the schemas of the wire format, the request is only marked as done
+            remove(response.requestId);
+            return;
+        }
+        ByteBuffer body = ByteBuffer.allocate(13 + data.length);
+        body.put(RECORD_COMPLETED);
+        body.putInt(response.requestId);
+        body.putInt(response.status);
+        body.putInt(data.length);
+        body.put(data);
+
+        if (body.capacity() > MAX_RECORD_SIZE) {
+            // too large to restore, the request is only marked as done
+            remove(response.requestId);
+            return;
+        }
+        if (!reserve(body.capacity())) {
+            return;
+        }
+        deadBytes += recordSize(pending.remove(response.requestId));
+        completed.put(response.requestId, body.array());
+        append(body.array());
+        trimCompleted();
+    }
+
+    /**
+     * Remove the request from the journal, it will neither be replayed nor restored
+     *
+     * @param requestId The id of the request
+     */
+    synchronized void remove(int requestId) {
+
+        if (buffer == null || (!pending.containsKey(requestId) && !completed.containsKey(requestId))) {
+            return;
+        }
+        ByteBuffer body = ByteBuffer.allocate(5);
+        body.put(RECORD_REMOVED);
+        body.putInt(requestId);
+        if (!reserve(body.capacity())) {
+            return;
+        }
+        byte[] old = pending.remove(requestId);
+        if (old == null) {
+            old = completed.remove(requestId);
+        }
+        deadBytes += recordSize(old) + recordSize(body.array());
+        append(body.array());
+    }
+
+    /**
+     * Force the journal to storage and close it
+     */
+    synchronized void close() {
+
+        if (buffer != null) {
+            buffer.force();
+            buffer = null;
+        }
+    }
+
+    /**
+     * Make room for a record before the live records are changed, so a
+     * compaction never copies the record that is about to be appended.
+     * A full journal is compacted when at least half of its records are
+     * dead, otherwise it is grown.
+     *
+     * @param length The length of the body of the record
+     *
+     * @return true when the record fits, false when journaling stopped
+     */
+    private boolean reserve(int length) {
+
+        int size = RECORD_HEADER + length;
+        if (buffer.remaining() >= size) {
+            return true;
+        }
+        try {
+            boolean mostlyDead = deadBytes >= (buffer.position() - HEADER_SIZE) / 2;
+            compact(mostlyDead ? INITIAL_CAPACITY : 2 * buffer.capacity() + size);
+            if (buffer.remaining() < size) {
+                compact(2 * buffer.capacity() + size);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to compact the journal, journaling stopped", e);
+            buffer = null;
+            return false;
+        }
+    }
+
+    /**
+     * Append the record to the journal, room for the record has been reserved
+     *
+     * @param body The body of the record
+     */
+    private void append(byte[] body) {
+
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        buffer.putInt(body.length);
+        buffer.putInt((int)crc.getValue());
+        buffer.put(body);
+
+        if (!syncScheduled) {
+            syncScheduled = true;
+            try {
+                executor.schedule(syncTask, SYNC_DELAY, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                syncScheduled = false;
+            }
+        }
+    }
+
+    /**
+     * Force the appended records to storage, called by the executor
+     */
+    private void sync() {
+
+        MappedByteBuffer buffer;
+        synchronized (this) {
+            syncScheduled = false;
+            buffer = this.buffer;
+        }
+        // appending continues while the mapping is being forced
+        if (buffer != null) {
+            buffer.force();
+        }
+    }
+
+    /**
+     * Read all valid records of the journal file into the live records
+     */
+    private void recover() throws IOException {
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer in = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (in.remaining() < HEADER_SIZE || in.getInt() != MAGIC || in.getInt() != VERSION) {
+                Log.w(TAG, "Ignoring journal with unknown format");
+                return;
+            }
+            maxId = Math.max(maxId, in.getInt());
+            CRC32 crc = new CRC32();
+            while (in.remaining() >= RECORD_HEADER) {
+                int length = in.getInt();
+                int checksum = in.getInt();
+                if (length <= 0 || length > in.remaining()) {
+                    break;
+                }
+                byte[] body = new byte[length];
+                in.get(body);
+                crc.reset();
+                crc.update(body);
+                if ((int)crc.getValue() != checksum) {
+                    Log.w(TAG, "Corrupt record at " + (in.position() - length) + ", recovery stopped");
+                    break;
+                }
+                replay(body);
+            }
+        } finally {
+            raf.close();
+        }
+        trimCompleted();
+    }
+
+    /**
+     * Apply the recovered record to the live records
+     *
+     * @param body The body of the record
+     */
+    private void replay(byte[] body) {
+
+        ByteBuffer record = ByteBuffer.wrap(body);
+        byte kind = record.get();
+        int id = record.getInt();
+        maxId = Math.max(maxId, id);
+
+        switch (kind) {
+        case RECORD_SUBMITTED:
+            pending.put(id, body);
+            break;
+        case RECORD_COMPLETED:
+            pending.remove(id);
+            completed.remove(id);
+            completed.put(id, body);
+            break;
+        case RECORD_REMOVED:
+            pending.remove(id);
+            completed.remove(id);
+            break;
+        }
+    }
+
+    /**
+     * Drop the oldest completed responses exceeding MAX_COMPLETED
+     */
+    private void trimCompleted() {
+
+        Iterator<byte[]> it = completed.values().iterator();
+        while (completed.size() > MAX_COMPLETED) {
+            deadBytes += recordSize(it.next());
+            it.remove();
+        }
+    }
+
+    /**
+     * Rewrite the journal with only its live records
+     *
+     * @param minCapacity The minimum capacity of the new journal
+     */
+    private void compact(int minCapacity) throws IOException {
+
+        int size = HEADER_SIZE;
+        for (byte[] body : pending.values()) {
+            size += recordSize(body);
+        }
+        for (byte[] body : completed.values()) {
+            size += recordSize(body);
+        }
+        int capacity = Math.max(minCapacity, 2 * size);
+        File tmp = new File(file.getPath() + ".tmp");
+        tmp.delete();
+
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        MappedByteBuffer out;
+        try {
+            out = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            out.putInt(maxId);
+            CRC32 crc = new CRC32();
+            for (byte[] body : pending.values()) {
+                write(out, crc, body);
+            }
+            for (byte[] body : completed.values()) {
+                write(out, crc, body);
+            }
+            out.force();
+        } finally {
+            raf.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Cannot replace " + file);
+        }
+        buffer = out;
+        deadBytes = 0;
+    }
+
+    /**
+     * Write the record to the mapped journal
+     *
+     * @param out   The mapped journal
+     * @param crc   The checksum to use
+     * @param body  The body of the record
+     */
+    private static void write(MappedByteBuffer out, CRC32 crc, byte[] body) {
+        crc.reset();
+        crc.update(body);
+        out.putInt(body.length);
+        out.putInt((int)crc.getValue());
+        out.put(body);
+    }
+
+    /**
+     * Get the size of the record in the journal
+     *
+     * @param body The body of the record
+     *
+     * @return The size in bytes including the record header
+     */
+    private static int recordSize(byte[] body) {
+        return RECORD_HEADER + body.length;
+    }
+
+    /**
+     * Decode the request of a submitted record
+     *
+     * @param record The body of the record
+     *
+     * @return The request with its original id
+     */
+    private static ServiceRequest decodeRequest(ByteBuffer record) {
+
+        record.get();
+        int id = record.getInt();
+        ServiceRequest request = new ServiceRequest(record.getInt());
+        request.id = id;
+        request.priority = record.getInt();
+        long deadline = record.getLong();
+        if (deadline != 0) {
+            request.deadline = Math.max(1, deadline - System.currentTimeMillis() + SystemClock.elapsedRealtime());
+        }
+        request.data = unmarshall(record);
+        return request;
+    }
+
+    /**
+     * Decode the response of a completed record
+     *
+     * @param record The body of the record
+     *
+     * @return The response
+     */
+    private static ServiceResponse decodeResponse(ByteBuffer record) {
+
+        record.get();
+        ServiceResponse response = new ServiceResponse(record.getInt());
+        response.status = record.getInt();
+        response.data = unmarshall(record);
+        return response;
+    }
+
+    /**
+     * Decode the length prefixed data bundle from the record
+     *
+     * @param record The body of the record
+     *
+     * @return The data bundle
+     */
+    private static Bundle unmarshall(ByteBuffer record) {
+
+        int length = record.getInt();
+        if (length < 0 || length > record.remaining()) {
+            throw new IllegalArgumentException("Invalid data length: " + length);
+        }
+        return WireFormat.decodeVersioned(record.array(), record.position(), length);
+    }
+}
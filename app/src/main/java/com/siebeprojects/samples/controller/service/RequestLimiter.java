@@ -0,0 +1,248 @@
+/*
+ * This file is part of Siebe Projects samples.
+ *
+ * Siebe Projects samples is free software: you can redistribute it and/or modify
+ * it under the terms of the Lesser GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Siebe Projects samples is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Lesser GNU General Public License for more details.
+ *
+ * You should have received a copy of the Lesser GNU General Public License
+ * along with Siebe Projects samples.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.siebeprojects.samples.controller.service;
+
+import android.util.SparseIntArray;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The limiter of pending requests used by the ServiceController. A permit is
+ * acquired for every pending request, both the total number of permits and
+ * the number of permits per request type can be limited. Permits are counted
+ * with atomic counters, the monitor is only used by callers waiting for a permit.
+ */
+final class RequestLimiter {
+
+    /** The weight of a new latency sample in the average latency, as a shift */
+    private final static int LATENCY_SHIFT = 3;
+
+    /** The total number of acquired permits */
+    private final AtomicInteger total;
+
+    /** The number of acquired permits per request type */
+    private final ConcurrentHashMap<Integer, AtomicInteger> types;
+
+    /** The number of callers waiting for a permit */
+    private final AtomicInteger waiters;
+
+    /** The maximum total number of permits, 0 for no limit */
+    private volatile int maxTotal;
+
+    /** The maximum number of permits per request type, copied on write */
+    private volatile SparseIntArray maxTypes;
+
+    /** The moving average of the request latency in milliseconds */
+    private volatile long latency;
+
+    /**
+     * Construct a new RequestLimiter without limits
+     */
+    RequestLimiter() {
+        total = new AtomicInteger();
+        types = new ConcurrentHashMap<Integer, AtomicInteger>();
+        waiters = new AtomicInteger();
+        maxTypes = new SparseIntArray();
+    }
+
+    /**
+     * Set the maximum total number of permits
+     *
+     * @param max The maximum number of permits, 0 for no limit
+     */
+    void setLimit(int max) {
+        maxTotal = max;
+        wakeUp();
+    }
+
+    /**
+     * Set the maximum number of permits of the request type
+     *
+     * @param type  The request type
+     * @param max   The maximum number of permits, 0 for no limit
+     */
+    synchronized void setLimit(int type, int max) {
+
+        SparseIntArray limits = maxTypes.clone();
+        limits.put(type, max);
+        maxTypes = limits;
+        notifyAll();
+    }
+
+    /**
+     * Try to acquire a permit for a request of the given type
+     *
+     * @param type The request type
+     *
+     * @return true when acquired, false when a limit has been reached
+     */
+    boolean tryAcquire(int type) {
+
+        if (!increment(total, maxTotal)) {
+            return false;
+        }
+        if (!increment(counter(type), maxTypes.get(type, 0))) {
+            total.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Acquire a permit for a request of the given type regardless of the limits,
+     * used for requests admitted before the process died
+     *
+     * @param type The request type
+     */
+    void forceAcquire(int type) {
+        total.incrementAndGet();
+        counter(type).incrementAndGet();
+    }
+
+    /**
+     * Acquire a permit for a request of the given type, waiting at most
+     * the given time for a permit to become available.
+     *
+     * @param type      The request type
+     * @param timeout   The maximum time to wait in milliseconds
+     *
+     * @return true when acquired, false when the time elapsed
+     */
+    boolean acquire(int type, long timeout) throws InterruptedException {
+
+        if (tryAcquire(type)) {
+            return true;
+        }
+        long end = System.currentTimeMillis() + timeout;
+        waiters.incrementAndGet();
+        try {
+            synchronized (this) {
+                while (!tryAcquire(type)) {
+                    long remaining = end - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    wait(remaining);
+                }
+                return true;
+            }
+        } finally {
+            waiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * Release the permit of a completed request
+     *
+     * @param type      The request type
+     * @param latency   The time in milliseconds the request has been pending
+     */
+    void release(int type, long latency) {
+
+        counter(type).decrementAndGet();
+        total.decrementAndGet();
+
+        long average = this.latency;
+        this.latency = average + ((latency - average) >> LATENCY_SHIFT);
+        wakeUp();
+    }
+
+    /**
+     * Check if the limit of the request type has been reached
+     *
+     * @param type The request type
+     *
+     * @return true when no permit of this type is available
+     */
+    boolean isTypeFull(int type) {
+        int max = maxTypes.get(type, 0);
+        return max > 0 && counter(type).get() >= max;
+    }
+
+    /**
+     * Estimate the time after which a permit becomes available
+     *
+     * @return The time in milliseconds
+     */
+    long estimateRetryAfter() {
+        return Math.max(1, latency);
+    }
+
+    /**
+     * Release all permits, used when the pending requests are cleared
+     */
+    void reset() {
+        total.set(0);
+        types.clear();
+        wakeUp();
+    }
+
+    /**
+     * Wake up the callers waiting for a permit
+     */
+    private void wakeUp() {
+
+        if (waiters.get() > 0) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Get the permit counter of the request type
+     *
+     * @param type The request type
+     *
+     * @return The counter
+     */
+    private AtomicInteger counter(int type) {
+
+        AtomicInteger count = types.get(type);
+        if (count == null) {
+            count = new AtomicInteger();
+            AtomicInteger current = types.putIfAbsent(type, count);
+            if (current != null) {
+                count = current;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Increment the counter if it is below the maximum
+     *
+     * @param count The counter
+     * @param max   The maximum, 0 for no limit
+     *
+     * @return true when incremented, false when the maximum has been reached
+     */
+    private static boolean increment(AtomicInteger count, int max) {
+
+        while (true) {
+            int current = count.get();
+            if (max > 0 && current >= max) {
+                return false;
+            }
+            if (count.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * This file is part of Siebe Projects samples.
+ *
+ * Siebe Projects samples is free software: you can redistribute it and/or modify
+ * it under the terms of the Lesser GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Siebe Projects samples is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Lesser GNU General Public License for more details.
+ *
+ * You should have received a copy of the Lesser GNU General Public License
+ * along with Siebe Projects samples.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.siebeprojects.samples.controller.service;
+
+import android.os.Parcel;
+import android.os.SystemClock;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The least recently used cache of responses of cacheable requests. The cache
+ * is bounded by the number of entries and the total size of the responses,
+ * entries may optionally expire after a time to live.
+ */
+public final class ResultCache {
+
+    /** The default limits of the cache */
+    public final static int DEFAULT_MAX_ENTRIES = 64;
+    public final static int DEFAULT_MAX_BYTES   = 1024 * 1024;
+
+    /** The cached entries in access order, the eldest entry is the least recently used */
+    private final LinkedHashMap<String, Entry> entries;
+
+    /** The maximum number of entries */
+    private int maxEntries;
+
+    /** The maximum total size of the entries in bytes */
+    private long maxBytes;
+
+    /** The time to live of an entry in milliseconds, 0 means entries do not expire */
+    private long ttl;
+
+    /** The total size of the entries in bytes */
+    private long bytes;
+
+    /** The statistics of this cache */
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Construct a new ResultCache with the default limits
+     */
+    ResultCache() {
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        maxEntries = DEFAULT_MAX_ENTRIES;
+        maxBytes = DEFAULT_MAX_BYTES;
+    }
+
+    /**
+     * Set the limits of this cache, entries exceeding the new limits are evicted.
+     *
+     * @param maxEntries    The maximum number of entries, 0 disables the cache
+     * @param maxBytes      The maximum total size of the entries in bytes
+     * @param ttl           The time to live of an entry in milliseconds, 0 for no expiry
+     */
+    public synchronized void setLimits(int maxEntries, long maxBytes, long ttl) {
+
+        if (maxEntries < 0 || maxBytes < 0 || ttl < 0) {
+            throw new IllegalArgumentException("Limits cannot be negative");
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttl = ttl;
+        trim();
+    }
+
+    /**
+     * Get the number of requests that were answered from this cache
+     *
+     * @return The number of hits
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Get the number of cacheable requests that were not found in this cache
+     *
+     * @return The number of misses
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Get the number of entries removed to stay within the limits or because
+     * they expired.
+     *
+     * @return The number of evictions
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * Get the number of entries in this cache
+     *
+     * @return The number of entries
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Get the total size of the entries in this cache
+     *
+     * @return The size in bytes
+     */
+    public synchronized long sizeInBytes() {
+        return bytes;
+    }
+
+    /**
+     * Remove all entries from this cache, the statistics are kept.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("ResultCache[entries: ");
+        sb.append(entries.size());
+        sb.append(",bytes: ");
+        sb.append(bytes);
+        sb.append(",hits: ");
+        sb.append(hits);
+        sb.append(",misses: ");
+        sb.append(misses);
+        sb.append(",evictions: ");
+        sb.append(evictions);
+        sb.append("]");
+        return sb.toString();
+    }
+
+    /**
+     * Get the cached response of the request with the given key
+     *
+     * @param key The key of the request
+     *
+     * @return The cached response or null if not found or expired
+     */
+    synchronized ServiceResponse get(String key) {
+
+        Entry entry = entries.get(key);
+        if (entry != null && entry.isExpired(SystemClock.elapsedRealtime())) {
+            remove(key, entry);
+            evictions++;
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.response;
+    }
+
+    /**
+     * Store the response of the request with the given key
+     *
+     * @param key       The key of the request
+     * @param response  The response to store, must not be changed afterwards
+     */
+    synchronized void put(String key, ServiceResponse response) {
+
+        if (maxEntries == 0) {
+            return;
+        }
+        long size = sizeOf(key, response);
+        if (size > maxBytes) {
+            // the response is too large to cache, the older response is stale
+            Entry old = entries.get(key);
+            if (old != null) {
+                remove(key, old);
+            }
+            return;
+        }
+        long expires = ttl > 0 ? SystemClock.elapsedRealtime() + ttl : 0;
+        Entry old = entries.put(key, new Entry(response, size, expires));
+
+        if (old != null) {
+            bytes -= old.size;
+        }
+        bytes += size;
+        trim();
+    }
+
+    /**
+     * Evict the least recently used entries until this cache is within its limits
+     */
+    private void trim() {
+
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext() && (entries.size() > maxEntries || bytes > maxBytes)) {
+            bytes -= iterator.next().getValue().size;
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Remove the entry from this cache
+     *
+     * @param key   The key of the entry
+     * @param entry The entry to remove
+     */
+    private void remove(String key, Entry entry) {
+        entries.remove(key);
+        bytes -= entry.size;
+    }
+
+    /**
+     * Estimate the memory size of the cache entry, the response is
+     * measured by its parcelled size.
+     *
+     * @param key       The key of the request
+     * @param response  The response
+     *
+     * @return The estimated size in bytes
+     */
+    private static long sizeOf(String key, ServiceResponse response) {
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            response.writeToParcel(parcel, 0);
+            return parcel.dataSize() + 2L * key.length();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * A cached response with its size and expiry time
+     */
+    private final static class Entry {
+
+        /** The cached response */
+        final ServiceResponse response;
+
+        /** The estimated size in bytes */
+        final long size;
+
+        /** The elapsed realtime this entry expires, 0 if it never expires */
+        final long expires;
+
+        Entry(ServiceResponse response, long size, long expires) {
+            this.response = response;
+            this.size = size;
+            this.expires = expires;
+        }
+
+        boolean isExpired(long now) {
+            return expires != 0 && now >= expires;
+        }
+    }
+}
@@ -18,26 +18,42 @@
 package com.siebeprojects.samples.controller.service;
 
 import android.content.Context;
-import android.app.IntentService;
+import android.app.Service;
 
 import android.content.Intent;
 
 import android.util.Log;
 
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
 import android.os.Process;
+import android.os.SystemClock;
 
 import android.text.TextUtils;
+import android.util.SparseIntArray;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 
 /**
  * The Service to handle all App requests and communication with 
- * the backend. 
+ * the backend. Requests are executed in parallel on a bounded pool of 
+ * worker threads, the service stops itself once all requests are handled
+ * and no new request arrived during the keep alive time. The service can be 
+ * warmed up with an Intent without a request so the first requests of a burst
+ * do not pay for its creation, see ServiceController.warmUp.
+ * The latency metrics of the handled requests can be dumped with
+ * adb shell dumpsys activity service SampleService.
+ * The nested Shard services are declared in their own processes, the 
+ * ServiceController spreads the requests over them in multi-process mode.
  */
-public final class SampleService extends IntentService {
+public class SampleService extends Service implements ServiceExecutor.Listener {
 
     private final static String TAG     = "sample_SampleService";
 
@@ -46,11 +62,135 @@ public final class SampleService extends IntentService {
     public final static String KEY_SERVICEREQUEST    = "servicerequest";
     public final static String KEY_SERVICERESPONSE   = "serviceresponse";
 
+    /** The action of the Intent cancelling a request */
+    final static String ACTION_CANCEL                = "com.siebeprojects.samples.controller.CANCEL";
+    final static String KEY_REQUESTID                = "requestid";
+
+    /** The action of the Intent warming up the service without a request */
+    final static String ACTION_WARMUP                = "com.siebeprojects.samples.controller.WARMUP";
+
+    /** The default time in milliseconds an idle service stays alive */
+    public final static long DEFAULT_KEEP_ALIVE      = 10 * 1000;
+
+    /** The message codes used by the bound connection */
+    final static int MSG_REQUEST                     = 1;
+    final static int MSG_RESPONSE                    = 2;
+    final static int MSG_CANCEL                      = 3;
+
+    /** The services running in separate processes, in order of their shard index */
+    final static Class<?>[] SHARDS = { Shard0.class, Shard1.class, Shard2.class, Shard3.class };
+
+    /** The number of worker threads used by new service instances */
+    private static int poolSize = Runtime.getRuntime().availableProcessors();
+
+    /** The time in milliseconds an idle service stays alive before it stops itself */
+    private static volatile long keepAlive = DEFAULT_KEEP_ALIVE;
+
+    /** The concurrency limits per request type used by new service instances */
+    private static SparseIntArray typeLimits = new SparseIntArray();
+
+    /** The metrics of the requests handled in this process, kept when the service stops */
+    private final static ServiceMetrics metrics = new ServiceMetrics("SampleService");
+
+    /** The executor running the requests */
+    private ServiceExecutor executor;
+
+    /** The handler of the main thread, used to stop the service */
+    private Handler handler;
+
+    /** The sink sending the chunks of streaming requests */
+    private RequestHandler.ChunkSink chunkSink;
+
+    /** The Messenger receiving requests from bound clients */
+    private Messenger messenger;
+
+    /** The task stopping the service when it is still idle, posted after the keep alive time */
+    private Runnable stopTask;
+
+    /** The id of the last start request, only accessed from the main thread */
+    private int lastStartId;
+
+    /** 
+     * Is this service cold, i.e. it has not received a request and has not 
+     * been warmed up. Only accessed from the main thread.
+     */
+    private boolean cold;
+
+    /** The elapsed realtime this service has been created */
+    private long created;
+
     /** 
      * Construct a new SampleService
      */
     public SampleService() {
-        super("SampleService");
+    }
+
+    /** 
+     * Set the maximum number of worker threads, the size is applied when the 
+     * service is created. 
+     * 
+     * @param size The maximum number of worker threads
+     */
+    public static synchronized void setWorkerPoolSize(int size) {
+
+        if (size < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1");
+        }
+        poolSize = size;
+    }
+
+    /** 
+     * Set the time an idle service stays alive before it stops itself, a new 
+     * request arriving within this time finds a warm service. The time applies 
+     * to the services in this process, i.e. it must be set in Application.onCreate
+     * for the shards running in separate processes.
+     * 
+     * @param millis The keep alive time in milliseconds, 0 to stop as soon as the service is idle
+     */
+    public static void setKeepAlive(long millis) {
+
+        if (millis < 0) {
+            throw new IllegalArgumentException("Keep alive cannot be negative");
+        }
+        keepAlive = millis;
+    }
+
+    /** 
+     * Set the maximum number of requests of the given type that may run in 
+     * parallel, the limit is applied when the service is created.
+     * 
+     * @param type  The type of the request 
+     * @param limit The maximum number of parallel requests, 0 for no limit
+     */
+    public static synchronized void setConcurrencyLimit(int type, int limit) {
+
+        if (limit < 0) {
+            throw new IllegalArgumentException("Limit cannot be negative");
+        }
+        SparseIntArray limits = typeLimits.clone();
+        limits.put(type, limit);
+        typeLimits = limits;
+    }
+
+    /** 
+     * Create an executor with the current pool size and concurrency limits,
+     * the requests of a handler that cannot run in parallel are executed one 
+     * at a time unless the type has its own limit.
+     * 
+     * @param listener The listener to notify when all work is done
+     * 
+     * @return The new executor
+     */
+    static synchronized ServiceExecutor createExecutor(ServiceExecutor.Listener listener) {
+
+        SparseIntArray limits = typeLimits.clone();
+        RequestHandler[] handlers = HandlerRegistry.getAll();
+        for (int type = 0; type < handlers.length; type++) {
+            if (handlers[type] != null && !handlers[type].isParallel() && limits.indexOfKey(type) < 0) {
+                limits.put(type, 1);
+            }
+        }
+        return new ServiceExecutor(poolSize, limits, listener);
     }
 
     /** 
@@ -62,20 +202,192 @@ public final class SampleService extends IntentService {
      * @return The launch Intent
      */
     public final static Intent createSampleServiceIntent(Context context, ServiceRequest request) {
+        return createSampleServiceIntent(context, SampleService.class, request);
+    }
+
+    /** 
+     * Create the launch intent of the service or one of its shards
+     * 
+     * @param context The context used to create the intent
+     * @param service The class of the service to launch
+     * @param request The request that should be added to the intent 
+     * 
+     * @return The launch Intent
+     */
+    final static Intent createSampleServiceIntent(Context context, Class<?> service, ServiceRequest request) {
 
-        Intent intent = new Intent(context, SampleService.class);
+        Intent intent = new Intent(context, service);
         Bundle data = new Bundle();
         data.putParcelable(KEY_SERVICEREQUEST, request);
         intent.putExtra(KEY_REQUESTDATA, data);
         return intent;
     }
 
+    /** 
+     * Create the Intent warming up the service or one of its shards, the service
+     * is created and starts its worker threads without executing a request.
+     * 
+     * @param context The context used to create the intent
+     * @param service The class of the service to warm up
+     * 
+     * @return The warm up Intent
+     */
+    final static Intent createWarmUpIntent(Context context, Class<?> service) {
+
+        Intent intent = new Intent(context, service);
+        intent.setAction(ACTION_WARMUP);
+        return intent;
+    }
+
+    /** 
+     * Create the Intent cancelling a request that has not been started yet
+     * 
+     * @param context   The context used to create the intent
+     * @param service   The class of the service executing the request
+     * @param requestId The id of the request to cancel
+     * 
+     * @return The cancel Intent
+     */
+    final static Intent createCancelIntent(Context context, Class<?> service, int requestId) {
+
+        Intent intent = new Intent(context, service);
+        intent.setAction(ACTION_CANCEL);
+        intent.putExtra(KEY_REQUESTID, requestId);
+        return intent;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        created = SystemClock.elapsedRealtime();
+        cold = true;
+        metrics.recordService(true, 0);
+        executor = createExecutor(this);
+        handler = new Handler(Looper.getMainLooper());
+        stopTask = new Runnable() {
+                @Override
+                public void run() {
+                    if (executor.isIdle()) {
+                        stopSelf(lastStartId);
+                    }
+                }
+            };
+        chunkSink = new RequestHandler.ChunkSink() {
+                @Override
+                public void send(ServiceRequest request, ServiceResponse chunk) {
+                    PayloadStore.externalize(SampleService.this, chunk.data);
+                    Bundle data = new Bundle();
+                    data.putParcelable(KEY_SERVICERESPONSE, chunk);
+                    sendResponse(request, data);
+                }
+            };
+        messenger = new Messenger(new Handler(Looper.getMainLooper()) {
+                @Override
+                public void handleMessage(Message msg) {
+                    if (msg.what == MSG_REQUEST) {
+                        onHandleMessage(msg);
+                    } else if (msg.what == MSG_CANCEL) {
+                        executor.cancel(msg.arg1);
+                    }
+                }
+            });
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
-    protected void onHandleIntent(Intent intent) {
+    public void onDestroy() {
+        super.onDestroy();
+        handler.removeCallbacks(stopTask);
+        executor.shutdown();
+
+        long lifetime = SystemClock.elapsedRealtime() - created;
+        metrics.recordService(false, lifetime);
+        Log.i(TAG, "Stopped after " + lifetime + " ms, queue wait times\n" + executor.getWaitStatistics());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public IBinder onBind(Intent intent) {
+        return messenger.getBinder();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+
+        // the request must be submitted before the start id is stored, 
+        // otherwise the service may be stopped before the request is executed
+        onHandleIntent(intent);
+        lastStartId = startId;
+
+        if (executor.isIdle()) {
+            scheduleStop();
+        }
+        return START_NOT_STICKY;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onIdle() {
+
+        // stop on the main thread so the check cannot interleave with onStartCommand
+        scheduleStop();
+    }
+
+    /** 
+     * Schedule the stop of this service after the keep alive time, replacing 
+     * a scheduled stop. The service is only stopped when it is still idle.
+     */
+    private void scheduleStop() {
+        handler.removeCallbacks(stopTask);
+        handler.postDelayed(stopTask, keepAlive);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+
+        metrics.dump(writer);
+        writer.println("Queue wait times:");
+        writer.print(executor.getWaitStatistics());
+        // the controller only has metrics when it runs in the process of the service,
+        // it is not created just for the dump in a shard process
+        ServiceController controller = ServiceController.peekSingleton();
+        if (controller != null && controller.getContext() != null) {
+            controller.getMetrics().dump(writer);
+        }
+    }
+
+    /** 
+     * Handle the intent by submitting its request to the executor
+     * 
+     * @param intent The intent containing the request
+     */
+    private void onHandleIntent(Intent intent) {
 
+        if (intent != null && ACTION_CANCEL.equals(intent.getAction())) {
+            executor.cancel(intent.getIntExtra(KEY_REQUESTID, 0));
+            return;
+        }
+        if (intent != null && ACTION_WARMUP.equals(intent.getAction())) {
+            cold = false;
+            executor.prestart();
+            return;
+        }
         if (intent == null || !intent.hasExtra(KEY_REQUESTDATA)) {
             return;
         }
@@ -83,10 +395,49 @@ public final class SampleService extends IntentService {
         ServiceRequest request = (ServiceRequest)data.getParcelable(KEY_SERVICEREQUEST);
 
         if (request != null) {
-            handleServiceRequest(data, request);
+            executeServiceRequest(data, request);
+        }
+    }
+
+    /** 
+     * Handle the message from a bound client by submitting its request to the executor.
+     * The response is send to the reply Messenger of the message.
+     * 
+     * @param msg The message containing the request
+     */
+    private void onHandleMessage(Message msg) {
+
+        Bundle data = msg.getData();
+        data.setClassLoader(ServiceRequest.class.getClassLoader());
+        ServiceRequest request = (ServiceRequest)data.getParcelable(KEY_SERVICEREQUEST);
+
+        if (request != null && msg.replyTo != null) {
+            request.replyTo = msg.replyTo;
+            executeServiceRequest(data, request);
         }
     }
 
+    /** 
+     * Submit the request to the executor
+     * 
+     * @param data      The data bundle 
+     * @param request   The request to execute
+     */
+    private void executeServiceRequest(final Bundle data, final ServiceRequest request) {
+
+        request.received = System.nanoTime();
+        metrics.recordDispatch(request, cold);
+        cold = false;
+        handler.removeCallbacks(stopTask);
+        executor.execute(request, new Runnable() {
+                @Override
+                public void run() {
+                    handleServiceRequest(data, request);
+                }
+            });
+        metrics.recordQueueDepth(executor.getActiveCount());
+    }
+
     /** 
      * Handle the service request from the application
      * 
@@ -95,17 +446,52 @@ public final class SampleService extends IntentService {
      */
     private void handleServiceRequest(Bundle data, ServiceRequest request) {
 
-        ServiceResponse response = new ServiceResponse(request.id);
-        switch (request.type) {
-        case ServiceRequest.REQ_REVERSE_TEXT:
-            String text = request.data.getString(ServiceRequest.KEY_DATA);
-            text = new StringBuilder(text).reverse().toString();
-            response.data.putString(ServiceResponse.KEY_DATA, text);
-            break;
-        }
+        ServiceResponse response = ServiceHandler.handle(request, chunkSink);
 
-        // send the response back to the ServiceController
+        // send the response back to the ServiceController, the callback 
+        // stage of the response is recorded by the ServiceController
+        PayloadStore.externalize(this, response.data);
+        metrics.sampleParcelSize(response.data);
+        metrics.recordResponse(request, response, 0);
+        data.remove(KEY_SERVICEREQUEST);
         data.putParcelable(KEY_SERVICERESPONSE, response);
-        request.receiver.send(response.requestId, data);
+        sendResponse(request, data);
+    }
+
+    /** 
+     * Send the response data to the receiver or the reply Messenger of the request
+     * 
+     * @param request   The request that has been handled
+     * @param data      The bundle containing the response
+     */
+    private void sendResponse(ServiceRequest request, Bundle data) {
+
+        if (request.receiver != null) {
+            request.receiver.send(request.id, data);
+            return;
+        }
+        Message msg = Message.obtain(null, MSG_RESPONSE, request.id, 0);
+        msg.setData(data);
+        try {
+            request.replyTo.send(msg);
+        } catch (RemoteException e) {
+            Log.w(TAG, "Failed to send response of " + request, e);
+        }
+    }
+
+    /**
+     * The shards of the service, every shard is declared in the manifest
+     * with its own process.
+     */
+    public static class Shard0 extends SampleService {
+    }
+
+    public static class Shard1 extends SampleService {
+    }
+
+    public static class Shard2 extends SampleService {
+    }
+
+    public static class Shard3 extends SampleService {
     }
 }
@@ -25,10 +25,30 @@ import android.content.pm.PackageManager;
 import android.content.SharedPreferences;
 
 import android.util.Log;
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.text.TextUtils;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class serves as a bridge between the application and service.
@@ -36,16 +56,81 @@ import java.util.HashSet;
  * be used to determine if requests are pending. 
  * Use the addObserver and removeObserver methods to start and stop listening for responses.
  * These methods can be used i.e. in the onPause and onResume methods of an Activity.
+ * Observers can also subscribe to a single request or to all requests of a type,
+ * these observers are only notified of the responses they are interested in.
+ * A request that is identical to a pending request is not send to the service again,
+ * it is attached to the pending request and receives a copy of its response.
+ * Responses of cacheable request types are stored in a ResultCache, a cached
+ * response is delivered to the observers without contacting the service.
+ * Cacheable responses are also stored in a DiskResultCache, they are restored
+ * from disk after the process has been restarted.
+ * When bound to the service, requests are send over a persistent connection
+ * instead of starting the service with an Intent for every request.
+ * Texts exceeding the large payload threshold are passed as memory mapped 
+ * files, only the handle of the file is parcelled.
+ * Requests can be send and observers added from any thread, the ServiceController
+ * uses concurrent collections and never holds a lock while calling an observer.
+ * Responses are received on a background thread, observers are called on the main
+ * thread unless they have been added with another executor. With batched delivery
+ * the completions of the main thread observers are collected and delivered once
+ * per frame or interval as a list.
+ * The asynchronous methods return a ServiceFuture that can be used to wait for or
+ * cancel the request. Requests that are not completed within the request timeout
+ * are expired by a background reaper.
+ * Recently completed responses are kept for a short time, an observer added for
+ * a completed request receives its response instead of the request being send again.
+ * The number of pending requests can be limited, in total and per request type.
+ * The admission policy determines what happens to a request exceeding a limit.
+ * The latency of every stage of a request is recorded in the ServiceMetrics.
+ * Request types can be executed directly in the calling process, these requests
+ * are handled on an internal executor and passed by reference instead of being
+ * parcelled. This requires the SampleService to run in the process of the application.
+ * In multi-process mode the requests are spread over the shards of the SampleService,
+ * every shard runs in its own process. A request is routed to the shard of its type
+ * or to the least loaded shard, the pending requests of a shard that died are send again.
+ * With journaling enabled the requests survive the death of the process, pending 
+ * requests are send again and completed responses are restored at the next init.
  */
 public final class ServiceController {
 
     private final static String TAG     = "sample_ServiceController";
 
+    /** The default time in milliseconds after which a pending request expires */
+    public final static long DEFAULT_TIMEOUT = 60 * 1000;
+
+    /** The admission policies applied when a limit of pending requests has been reached */
+    public final static int POLICY_FAIL_FAST     = 0;
+    public final static int POLICY_BLOCK         = 1;
+    public final static int POLICY_SHED_OLDEST   = 2;
+    public final static int POLICY_RETRY_AFTER   = 3;
+
+    /** The name of the disk cache directory in the cache directory */
+    private final static String DISK_CACHE_DIR = "results";
+
+    /** The name of the request journal in the files directory */
+    private final static String JOURNAL_FILE = "requests.journal";
+
+    /** The batched delivery intervals, off or aligned with the frames of the display */
+    public final static long BATCH_OFF          = -1;
+    public final static long BATCH_PER_FRAME    = 0;
+
+    /** The interval in milliseconds of the reaper expiring pending requests */
+    private final static long REAPER_INTERVAL = 1000;
+
+    /** The transports used to send requests to the service */
+    final static int TRANSPORT_NONE     = 0;
+    final static int TRANSPORT_INTENT   = 1;
+    final static int TRANSPORT_BOUND    = 2;
+    final static int TRANSPORT_DIRECT   = 3;
+
     /** the singleton service controller */
-    private static ServiceController singleton;
+    private static volatile ServiceController singleton;
+
+    /** the thread receiving the responses, shared by all controllers */
+    private static HandlerThread callbackThread;
 
     /** the context of the application */
-    private Context context;
+    private volatile Context context;
 
     /** Is the ServiceController initialized */
     private boolean init;
@@ -54,17 +139,213 @@ public final class ServiceController {
      * the internal map of service requests, this map is used 
      * to determine if requests are pending  
      */  
-    private HashMap<Integer, ServiceRequest> requests;
+    private ConcurrentHashMap<Integer, ServiceRequest> requests;
+
+    /** 
+     * the groups of identical pending requests, keyed by 
+     * the hash of the type and payload of the request 
+     */
+    private ConcurrentHashMap<String, PendingGroup> inflight;
+
+    /** 
+     * the primary requests that have been cancelled or expired while identical
+     * requests still wait for their response, keyed by request id
+     */
+    private ConcurrentHashMap<Integer, ServiceRequest> detached;
+
+    /** the lock held while pending requests are resend, a request is only recycled outside of it */
+    private final Object resendLock = new Object();
+
+    /** the futures of requests send through the asynchronous methods, keyed by request id */
+    private ConcurrentHashMap<Integer, ServiceFuture> futures;
+
+    /** the service observers, copied on write so they can be notified without a lock */
+    private CopyOnWriteArraySet<Delivery> observers;
+
+    /** the one-shot observers of a single request, keyed by request id */
+    private ConcurrentHashMap<Integer, CopyOnWriteArrayList<Delivery>> requestObservers;
+
+    /** the observers of all requests of a type, keyed by request type */
+    private ConcurrentHashMap<Integer, CopyOnWriteArraySet<Delivery>> typeObservers;
+
+    /** the cache of responses of cacheable request types */
+    private ResultCache cache;
+
+    /** the disk cache of responses of cacheable requests, only opened while initialized */
+    private DiskResultCache diskCache;
+
+    /** the latency metrics of the requests send by this controller */
+    private ServiceMetrics metrics;
+
+    /** the request types whose responses may be cached, copied on write */
+    private volatile SparseBooleanArray cacheable;
+
+    /** the request types that are executed directly in this process, copied on write */
+    private volatile SparseBooleanArray direct;
+
+    /** the executor of the requests executed directly, exists while initialised */
+    private volatile ServiceExecutor directExecutor;
+
+    /** the sink posting the chunks of directly executed requests */
+    private RequestHandler.ChunkSink directSink;
+
+    /** the receiver of the responses of all requests send with an Intent */
+    private ServiceResultReceiver receiver;
+
+    /** the handler of the main thread */
+    private Handler handler;
+
+    /** the handler of the thread receiving the responses */
+    private Handler callbackHandler;
+
+    /** the executor calling observers on the main thread */
+    private Executor mainExecutor;
+
+    /** the batcher of completions of the main thread observers, null when not batched */
+    private volatile DeliveryBatcher batcher;
+
+    /** the connection to the bound service */
+    private BoundServiceConnection connection;
 
-    /** the service observers */
-    private HashSet<ServiceObserver> observers;
+    /** the shards of the service running in separate processes */
+    private Shard[] shards;
+
+    /** the number of shards used, 0 when all requests are send to the SampleService */
+    private volatile int shardCount;
+
+    /** the shard of every routed request type, copied on write */
+    private volatile SparseIntArray shardRoutes;
+
+    /** Are identical requests coalesced */
+    private volatile boolean coalescing;
+
+    /** the number of requests that were attached to an identical pending request */
+    private AtomicInteger coalescedCount;
+
+    /** the limiter of pending requests */
+    private RequestLimiter limiter;
+
+    /** the admission policy applied when a limit has been reached */
+    private volatile int policy;
+
+    /** the number of requests rejected and shed by the admission policy */
+    private AtomicInteger rejectedCount;
+    private AtomicInteger shedCount;
+
+    /** the time in milliseconds after which a pending request expires, 0 for never */
+    private volatile long timeout;
+
+    /** Is the service warmed up at the next init */
+    private volatile boolean warmingUp = true;
+
+    /** Is the journal opened at the next init */
+    private volatile boolean journaling;
+
+    /** the journal of the requests, only available while initialized with journaling */
+    private volatile RequestJournal journal;
+
+    /** the latch released when the journal has been recovered, null when not recovering */
+    private volatile CountDownLatch recovery;
+
+    /** the recently completed responses that have not been claimed */
+    private StickyResponses sticky;
+
+    /** the responses restored from the journal that have not been claimed */
+    private ConcurrentHashMap<Integer, ServiceResponse> restored;
+
+    /** the executor running the reaper, only available while initialized */
+    private volatile ScheduledExecutorService reaper;
+
+    /** Is the reaper scheduled */
+    private AtomicBoolean reaping;
+
+    /** the task expiring the pending requests */
+    private Runnable reapTask;
 
     /**
      * Create the singleton instance of this ServiceController
      */
     private ServiceController() {
-        requests = new HashMap<Integer, ServiceRequest>();
-        observers = new HashSet<ServiceObserver>();
+        requests = new ConcurrentHashMap<Integer, ServiceRequest>();
+        inflight = new ConcurrentHashMap<String, PendingGroup>();
+        detached = new ConcurrentHashMap<Integer, ServiceRequest>();
+        futures = new ConcurrentHashMap<Integer, ServiceFuture>();
+        observers = new CopyOnWriteArraySet<Delivery>();
+        requestObservers = new ConcurrentHashMap<Integer, CopyOnWriteArrayList<Delivery>>();
+        typeObservers = new ConcurrentHashMap<Integer, CopyOnWriteArraySet<Delivery>>();
+        restored = new ConcurrentHashMap<Integer, ServiceResponse>();
+        sticky = new StickyResponses();
+        coalescing = true;
+        coalescedCount = new AtomicInteger();
+        timeout = DEFAULT_TIMEOUT;
+        limiter = new RequestLimiter();
+        policy = POLICY_FAIL_FAST;
+        rejectedCount = new AtomicInteger();
+        shedCount = new AtomicInteger();
+        reaping = new AtomicBoolean();
+        reapTask = new Runnable() {
+                @Override
+                public void run() {
+                    reap();
+                }
+            };
+
+        cache = new ResultCache();
+        diskCache = new DiskResultCache();
+        metrics = new ServiceMetrics("ServiceController");
+        cacheable = new SparseBooleanArray();
+        direct = new SparseBooleanArray();
+        directSink = new RequestHandler.ChunkSink() {
+                @Override
+                public void send(ServiceRequest request, ServiceResponse chunk) {
+                    postResponse(chunk);
+                }
+            };
+        handler = new Handler(Looper.getMainLooper());
+        callbackHandler = new Handler(getCallbackLooper());
+        mainExecutor = new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    handler.post(command);
+                }
+            };
+        // the service uses the request id as result code, so one receiver serves all requests
+        receiver = new ServiceResultReceiver(callbackHandler) {
+                @Override
+                protected void onReceiveResult(int resultCode, Bundle resultData) {
+                    notifyListeners(resultCode, resultData);
+                }
+            };
+
+        connection = new BoundServiceConnection(SampleService.class, callbackHandler.getLooper(), new BoundServiceConnection.Listener() {
+                @Override
+                public void onResponse(int requestId, Bundle bundle) {
+                    notifyListeners(requestId, bundle);
+                }
+
+                @Override
+                public void onDisconnected() {
+                    resendBoundRequests();
+                }
+            });
+        shardRoutes = new SparseIntArray();
+        shards = new Shard[SampleService.SHARDS.length];
+        for (int i = 0; i < shards.length; i++) {
+            final int index = i;
+            BoundServiceConnection shardConnection = new BoundServiceConnection(SampleService.SHARDS[i], 
+                callbackHandler.getLooper(), new BoundServiceConnection.Listener() {
+                    @Override
+                    public void onResponse(int requestId, Bundle bundle) {
+                        notifyListeners(requestId, bundle);
+                    }
+
+                    @Override
+                    public void onDisconnected() {
+                        resendShardRequests(index);
+                    }
+                });
+            shards[i] = new Shard(index, SampleService.SHARDS[i], shardConnection);
+        }
     }
 
     /**
@@ -85,6 +366,16 @@ public final class ServiceController {
         return singleton;
     }
 
+    /**
+     * Get the singleton instance of this ServiceController if it has been created,
+     * a process that never used the ServiceController does not create it.
+     *
+     * @return the singleton ServiceController or null if not created
+     */
+    static ServiceController peekSingleton() {
+        return singleton;
+    }
+
     /** 
      * Initialize the service controller, the ServiceController will hold a 
      * reference to the Application Context until 
@@ -100,18 +391,170 @@ public final class ServiceController {
         if (!init) {
             this.context = context.getApplicationContext();
             init = true;
+            reaper = Executors.newSingleThreadScheduledExecutor();
+            directExecutor = SampleService.createExecutor(new ServiceExecutor.Listener() {
+                    @Override
+                    public void onIdle() {
+                    }
+                });
+            purgePayloads();
+            diskCache.open(new File(this.context.getCacheDir(), DISK_CACHE_DIR));
+            if (journaling) {
+                openJournal(new File(this.context.getFilesDir(), JOURNAL_FILE));
+            }
+            if (warmingUp) {
+                warmUp();
+            }
+        }
+    }
+
+    /** 
+     * Warm up the service, or every shard in multi-process mode, so the next 
+     * requests do not pay for creating the service and its worker threads. 
+     * A warmed up service stays alive for the keep alive time of the service, 
+     * call this method before an expected burst of requests. The worker threads
+     * of the direct executor are started when request types are executed directly.
+     */
+    public synchronized void warmUp() {
+
+        if (context == null) {
+            throw new IllegalStateException("ServiceController is missing context, either stopped or not initialised");
+        }
+        int count = shardCount;
+        if (count == 0) {
+            context.startService(SampleService.createWarmUpIntent(context, SampleService.class));
+        }
+        for (int i = 0; i < count; i++) {
+            context.startService(SampleService.createWarmUpIntent(context, shards[i].service));
+        }
+        if (direct.size() > 0) {
+            directExecutor.prestart();
+        }
+    }
+
+    /** 
+     * Get the looper of the thread receiving the responses, the thread is 
+     * started when first used.
+     * 
+     * @return The looper of the callback thread
+     */
+    static synchronized Looper getCallbackLooper() {
+
+        if (callbackThread == null) {
+            callbackThread = new HandlerThread("ServiceController-callbacks");
+            callbackThread.start();
+        }
+        return callbackThread.getLooper();
+    }
+
+    /** 
+     * Bind to the service, once connected all requests are send over the 
+     * bound connection. Until the service is connected requests are send 
+     * by starting the service with an Intent. In multi-process mode 
+     * every shard is bound.
+     */
+    public synchronized void bind() {
+
+        if (context == null) {
+            throw new IllegalStateException("ServiceController is missing context, either stopped or not initialised");
+        }
+        int count = shardCount;
+        if (count == 0) {
+            connection.bind(context);
+        }
+        for (int i = 0; i < count; i++) {
+            shards[i].connection.bind(context);
+        }
+    }
+
+    /** 
+     * Unbind from the service and its shards, requests are send by starting
+     * the service with an Intent again.
+     */
+    public synchronized void unbind() {
+
+        if (context != null) {
+            unbindAll(context);
+        }
+    }
+
+    /** 
+     * Set the number of shards the requests are spread over, every shard is a 
+     * SampleService running in its own process. A shard that crashes does not
+     * take down the application or the other shards, its pending requests are
+     * send again. Shards are only monitored while bound, so the shard count 
+     * should be set before bind is called. The shards of the SampleService 
+     * have their own worker pools and do not share the direct execution of 
+     * the application process.
+     * 
+     * @param count The number of shards, 0 to send all requests to the SampleService
+     */
+    public synchronized void setShardCount(int count) {
+
+        if (count < 0 || count > shards.length) {
+            throw new IllegalArgumentException("Shard count must be between 0 and " + shards.length);
+        }
+        this.shardCount = count;
+    }
+
+    /** 
+     * Route all requests of the type to the shard, requests of a type without 
+     * a route are send to the least loaded shard.
+     * 
+     * @param type  The request type
+     * @param shard The index of the shard, -1 to remove the route
+     */
+    public synchronized void setShardRoute(int type, int shard) {
+
+        if (shard < -1 || shard >= shards.length) {
+            throw new IllegalArgumentException("Shard must be between -1 and " + (shards.length - 1));
+        }
+        SparseIntArray routes = this.shardRoutes.clone();
+        if (shard == -1) {
+            routes.delete(type);
+        } else {
+            routes.put(type, shard);
+        }
+        this.shardRoutes = routes;
+    }
+
+    /** 
+     * Get the load of the shard, the sum of the expected costs of the pending 
+     * requests send to the shard.
+     * 
+     * @param shard The index of the shard
+     * 
+     * @return The load of the shard
+     */
+    public int getShardLoad(int shard) {
+
+        if (shard < 0 || shard >= shards.length) {
+            throw new IllegalArgumentException("Shard must be between 0 and " + (shards.length - 1));
         }
+        return shards[shard].outstanding.get();
     }
 
     /** 
      * Add an observer to this service controller. Only non null observer can
-     * be added. 
+     * be added. The observer is called on the main thread.
+     * 
+     * @param observer      The observer to be added to this ServiceController
+     */
+    public void addObserver(ServiceObserver observer) {
+        addObserver(observer, mainExecutor);
+    }
+
+    /** 
+     * Add an observer to this service controller that is called by the executor.
+     * Only observers updating the user interface should be called on the main thread.
      * 
      * @param observer      The observer to be added to this ServiceController
+     * @param executor      The executor that calls the observer, or null to call the 
+     *                      observer on the background thread delivering the responses
      */
-    public synchronized void addObserver(ServiceObserver observer) {
+    public void addObserver(ServiceObserver observer, Executor executor) {
         if (observer != null) {
-            observers.add(observer);
+            observers.add(new Delivery(observer, executor));
         }
     }
 
@@ -121,9 +564,135 @@ public final class ServiceController {
      * 
      * @param observer      The observer to be removed.
      */
-    public synchronized void removeObserver(ServiceObserver observer) {
+    public void removeObserver(ServiceObserver observer) {
         if (observer != null) {
-            observers.remove(observer);
+            observers.remove(new Delivery(observer, null));
+        }
+    }
+
+    /** 
+     * Add an observer of a single pending request, the observer is removed 
+     * after the final response of the request has been delivered. When the 
+     * request has recently been completed the observer receives its response,
+     * otherwise the observer is not added. The observer is called on the main thread.
+     * 
+     * @param requestId     The id of the request to observe
+     * @param observer      The observer to be added
+     * 
+     * @return true when the observer will receive the response, false when the
+     *         request is not pending and its response is no longer available
+     */
+    public boolean addObserver(int requestId, ServiceObserver observer) {
+        return addObserver(requestId, observer, mainExecutor);
+    }
+
+    /** 
+     * Add an observer of a single pending request that is called by the executor, 
+     * the observer is removed after the final response of the request has been 
+     * delivered. When the request has recently been completed the observer 
+     * receives its response, otherwise the observer is not added. With 
+     * journaling enabled this method waits until the journal has been recovered.
+     * 
+     * @param requestId     The id of the request to observe
+     * @param observer      The observer to be added
+     * @param executor      The executor that calls the observer, or null to call the 
+     *                      observer on the background thread delivering the responses
+     * 
+     * @return true when the observer will receive the response, false when the
+     *         request is not pending and its response is no longer available
+     */
+    public boolean addObserver(int requestId, ServiceObserver observer, Executor executor) {
+
+        if (observer == null) {
+            return false;
+        }
+        // a journaled request is only known once the journal has been recovered
+        awaitRecovery();
+        Delivery delivery = new Delivery(observer, executor);
+        CopyOnWriteArrayList<Delivery> list = requestObservers.get(requestId);
+        if (list == null) {
+            list = new CopyOnWriteArrayList<Delivery>();
+            CopyOnWriteArrayList<Delivery> current = requestObservers.putIfAbsent(requestId, list);
+            if (current != null) {
+                list = current;
+            }
+        }
+        list.add(delivery);
+
+        // the request may have been completed while the observer was added
+        if (!requests.containsKey(requestId)) {
+            list.remove(delivery);
+            if (list.isEmpty()) {
+                requestObservers.remove(requestId, list);
+            }
+            return claimCompleted(requestId, delivery);
+        }
+        return true;
+    }
+
+    /** 
+     * Remove an observer of a single request
+     * 
+     * @param requestId     The id of the observed request
+     * @param observer      The observer to be removed
+     */
+    public void removeObserver(int requestId, ServiceObserver observer) {
+
+        CopyOnWriteArrayList<Delivery> list = requestObservers.get(requestId);
+        if (list != null && observer != null) {
+            list.remove(new Delivery(observer, null));
+            if (list.isEmpty()) {
+                requestObservers.remove(requestId, list);
+            }
+        }
+    }
+
+    /** 
+     * Add an observer of all requests with the given type, the observer is 
+     * called on the main thread.
+     * 
+     * @param type          The type of the requests to observe
+     * @param observer      The observer to be added
+     */
+    public void addTypeObserver(int type, ServiceObserver observer) {
+        addTypeObserver(type, observer, mainExecutor);
+    }
+
+    /** 
+     * Add an observer of all requests with the given type that is called by the executor
+     * 
+     * @param type          The type of the requests to observe
+     * @param observer      The observer to be added
+     * @param executor      The executor that calls the observer, or null to call the 
+     *                      observer on the background thread delivering the responses
+     */
+    public void addTypeObserver(int type, ServiceObserver observer, Executor executor) {
+
+        if (observer == null) {
+            return;
+        }
+        CopyOnWriteArraySet<Delivery> set = typeObservers.get(type);
+        if (set == null) {
+            set = new CopyOnWriteArraySet<Delivery>();
+            CopyOnWriteArraySet<Delivery> current = typeObservers.putIfAbsent(type, set);
+            if (current != null) {
+                set = current;
+            }
+        }
+        set.add(new Delivery(observer, executor));
+    }
+
+    /** 
+     * Remove an observer of all requests with the given type 
+     * 
+     * @param type          The type of the observed requests
+     * @param observer      The observer to be removed
+     */
+    public void removeTypeObserver(int type, ServiceObserver observer) {
+
+        CopyOnWriteArraySet<Delivery> set = typeObservers.get(type);
+        if (set != null && observer != null) {
+            set.remove(new Delivery(observer, null));
         }
     }
 
@@ -134,98 +703,1628 @@ public final class ServiceController {
      * 
      * @return true when the request is pending, false otherwise
      */
-    public synchronized boolean isPending(int requestId) {
+    public boolean isPending(int requestId) {
         return requests.containsKey(requestId);
     }
 
     /** 
-     * Get the Context object stored in this ServiceController.
+     * Cancel the pending request. The request is completed with a response 
+     * holding the STATUS_CANCELLED status and the service drops the request 
+     * when it has not been started yet. The service keeps working on the 
+     * request when identical requests are attached to it.
      * 
-     * @return The Context or null if this ServiceController was not initialized 
-     *      properly. 
+     * @param requestId     The id of the request to cancel
+     * 
+     * @return true when the request has been cancelled, false when it is not pending
      */
-    public Context getContext() {
-        return context;
+    public boolean cancel(int requestId) {
+        return abort(requestId, ServiceResponse.STATUS_CANCELLED);
     }
 
     /** 
-     * Stop this ServiceController, this will clear the request and observer 
-     * buffers.
+     * Set the time after which a pending request expires, an expired request is 
+     * completed with a response holding the STATUS_TIMEOUT status. The timeout
+     * applies to requests send after this call.
+     * 
+     * @param millis The timeout in milliseconds, 0 if requests never expire
      */
-    public synchronized void stop() {
+    public void setRequestTimeout(long millis) {
 
-        if (init) {
-            requests.clear();
-            observers.clear();
+        if (millis < 0) {
+            throw new IllegalArgumentException("Timeout cannot be negative");
+        }
+        this.timeout = millis;
+    }
 
-            Intent intent = new Intent(context, ServiceController.class);
-            context.stopService(intent);
+    /** 
+     * Limit the total number of pending requests and set the policy applied 
+     * to requests exceeding a limit:
+     * POLICY_FAIL_FAST throws a ServiceRejectedException, 
+     * POLICY_BLOCK waits until a pending request has been completed, at most 
+     * the request timeout and never on the main or callback thread,
+     * POLICY_SHED_OLDEST cancels the oldest pending request with the lowest 
+     * priority that is not higher than the priority of the new request and 
+     * POLICY_RETRY_AFTER throws a ServiceRejectedException holding the 
+     * estimated time after which the request may be send again.
+     * Requests recovered from the journal are always admitted.
+     * 
+     * @param maxPending    The maximum number of pending requests, 0 for no limit 
+     * @param policy        The admission policy
+     */
+    public void setAdmissionPolicy(int maxPending, int policy) {
 
-            this.context = null;
-            this.init = false;
+        if (maxPending < 0) {
+            throw new IllegalArgumentException("Limit cannot be negative");
         }
+        if (policy < POLICY_FAIL_FAST || policy > POLICY_RETRY_AFTER) {
+            throw new IllegalArgumentException("Unknown admission policy: " + policy);
+        }
+        this.policy = policy;
+        limiter.setLimit(maxPending);
     }
 
     /** 
-     * Shout the text to the service and wait for the service to respond.
+     * Limit the number of pending requests of the request type, the 
+     * admission policy applies to this limit as well. 
      * 
-     * @param text The text to send to the service
-     * 
-     * @return The unique request id, this id can be used for the isPending method
-     * to check if the request has already been handled.
+     * @param type          The request type 
+     * @param maxPending    The maximum number of pending requests, 0 for no limit 
      */
-    public int reverse(String text) {
+    public void setTypeAdmissionLimit(int type, int maxPending) {
 
-        if (TextUtils.isEmpty(text)) {
-            throw new IllegalArgumentException("Text cannot be null or empty");
-        }   
-        ServiceRequest request = new ServiceRequest(ServiceRequest.REQ_REVERSE_TEXT);
-        request.data.putString(ServiceResponse.KEY_DATA, text);
-        return sendToService(request);
-    } 
+        if (maxPending < 0) {
+            throw new IllegalArgumentException("Limit cannot be negative");
+        }
+        limiter.setLimit(type, maxPending);
+    }
 
     /** 
-     * Send the request to the service, store the request 
-     * into the internal request buffer.
+     * Get the number of requests rejected by the admission policy
      * 
-     * @param request The request to be send to the service.
+     * @return The number of rejected requests
      */
-    private synchronized int sendToService(ServiceRequest request) {
+    public int getRejectedCount() {
+        return rejectedCount.get();
+    }
 
-        if (context == null) {
-            throw new IllegalStateException("ServiceController is missing context, either stopped or not initialised");
-        }
+    /** 
+     * Get the number of pending requests cancelled to admit a new request
+     * 
+     * @return The number of shed requests
+     */
+    public int getShedCount() {
+        return shedCount.get();
+    }
 
-        // add teh result receiver to the request object
-        request.receiver = new ServiceResultReceiver() {
-                protected void onReceiveResult(int resultCode, Bundle resultData) {
-                    notifyListeners(resultCode, resultData);
-                }
-            };
+    /** 
+     * Enable or disable the coalescing of identical requests, coalescing is 
+     * enabled by default. 
+     * 
+     * @param coalescing true to attach identical requests to a pending request
+     */
+    public void setCoalescing(boolean coalescing) {
+        this.coalescing = coalescing;
+    }
 
-        requests.put(request.id, request);
-        Intent intent = SampleService.createSampleServiceIntent(context, request);
-        context.startService(intent);
-        return request.id;
+    /** 
+     * Get the number of requests that were attached to an identical pending 
+     * request instead of being send to the service.
+     * 
+     * @return The number of coalesced requests
+     */
+    public int getCoalescedCount() {
+        return coalescedCount.get();
     }
 
     /** 
-     * Notify all observers that are registered to this 
-     * ServiceController
+     * Mark the responses of a request type as cacheable. Only request types 
+     * whose result depends on nothing but the request data should be cacheable.
+     * By default a request type is cacheable when its RequestHandler is.
      * 
-     * @param requestId The id of the request that is completed 
-     * @param bundle The bundle containing the response data
+     * @param type      The request type 
+     * @param cacheable true when responses of this type may be cached
      */
-    private synchronized void notifyListeners(int requestId, Bundle bundle) {
-        
-        ServiceRequest req = requests.remove(requestId);
-        if (req == null) {
-            return;
-        }
-        ServiceResponse resp = bundle.getParcelable(SampleService.KEY_SERVICERESPONSE);
-        for (ServiceObserver observer : observers) {
-            observer.onServiceRequestCompleted(resp);
-        }
+    public synchronized void setCacheable(int type, boolean cacheable) {
+        SparseBooleanArray types = this.cacheable.clone();
+        types.put(type, cacheable);
+        this.cacheable = types;
     }
-}
 
+    /** 
+     * Enable or disable the direct execution of the request type. Requests of a
+     * direct type are handled on an internal executor of this controller, the
+     * request and response are passed by reference without marshalling. 
+     * Observers are notified with their executors as for all other requests.
+     * Only enable direct execution when the SampleService runs in the process 
+     * of the application. 
+     * 
+     * @param type      The request type
+     * @param direct    true to execute requests of the type directly
+     */
+    public synchronized void setDirectExecution(int type, boolean direct) {
+        SparseBooleanArray types = this.direct.clone();
+        types.put(type, direct);
+        this.direct = types;
+    }
+
+    /** 
+     * Set the limits of the buffer of completed responses. A response is kept
+     * until it is claimed with addObserver(requestId, observer), until it 
+     * expires or until it is the eldest response of a full buffer.
+     * 
+     * @param maxEntries    The maximum number of responses, 0 disables the buffer
+     * @param ttl           The time in milliseconds a response is kept
+     */
+    public void setStickyResponses(int maxEntries, long ttl) {
+        sticky.setLimits(maxEntries, ttl);
+    }
+
+    /** 
+     * Enable or disable the batched delivery of completed requests to the 
+     * observers called on the main thread. The completions are collected and 
+     * every observer receives them once per batch with onServiceRequestsCompleted.
+     * A batch stops calling observers when its time budget is spent, the 
+     * remaining completions are delivered with the next batch. Chunks of 
+     * streaming requests are never batched.
+     * 
+     * @param interval  The interval in milliseconds between batches, BATCH_PER_FRAME
+     *                  to deliver once per frame or BATCH_OFF to deliver every 
+     *                  completion on its own
+     * @param budget    The maximum time in milliseconds of a batch
+     */
+    public void setBatchedDelivery(long interval, long budget) {
+
+        if (interval < BATCH_OFF || budget <= 0) {
+            throw new IllegalArgumentException("Invalid interval or budget");
+        }
+        // a replaced batcher still delivers the completions it has collected
+        batcher = interval == BATCH_OFF ? null : new DeliveryBatcher(handler, interval, budget);
+    }
+
+    /** 
+     * Enable or disable the journal of requests, the setting is applied at
+     * the next init. Journaled requests that were pending when the process died
+     * are send again with their original ids, the observers can be added again 
+     * with addObserver(requestId, observer). The final responses of journaled 
+     * requests are delivered to the first observer added for their request id.
+     * The journal is recovered in the background, adding an observer of a 
+     * request id waits until the recovery has finished.
+     * Only enable journaling for requests that may be executed more than once.
+     * 
+     * @param journaling true to journal the requests
+     */
+    public void setJournaling(boolean journaling) {
+        this.journaling = journaling;
+    }
+
+    /** 
+     * Enable or disable warming up the service at init, enabled by default.
+     * The setting is applied at the next init. The cold and warm dispatch 
+     * latencies are reported by the metrics of the service.
+     * 
+     * @param warmUp true to warm up the service at init
+     */
+    public void setWarmUp(boolean warmUp) {
+        this.warmingUp = warmUp;
+    }
+
+    /** 
+     * Get the cache holding the responses of cacheable requests, the cache
+     * can be used to change its limits and obtain its statistics.
+     * 
+     * @return The result cache
+     */
+    public ResultCache getResultCache() {
+        return cache;
+    }
+
+    /** 
+     * Get the disk cache holding the responses of cacheable requests across 
+     * restarts of the process, the cache can be used to change its size and
+     * obtain its statistics.
+     * 
+     * @return The disk result cache
+     */
+    public DiskResultCache getDiskResultCache() {
+        return diskCache;
+    }
+
+    /** 
+     * Get a snapshot of the latency metrics of the requests send by this controller.
+     * The service stages are measured by the service and returned in the response.
+     * 
+     * @return The metrics snapshot
+     */
+    public ServiceMetrics getMetrics() {
+        return metrics.snapshot();
+    }
+
+    /** 
+     * Clear the latency metrics of this controller
+     */
+    public void resetMetrics() {
+        metrics.reset();
+    }
+
+    /** 
+     * Set the number of characters above which texts in requests and responses 
+     * created in this process are passed as memory mapped files instead of 
+     * being parcelled. 
+     * 
+     * @param chars The threshold in characters
+     */
+    public void setLargePayloadThreshold(int chars) {
+        PayloadStore.setThreshold(chars);
+    }
+
+    /** 
+     * Get the Context object stored in this ServiceController.
+     * 
+     * @return The Context or null if this ServiceController was not initialized 
+     *      properly. 
+     */
+    public Context getContext() {
+        return context;
+    }
+
+    /** 
+     * Stop this ServiceController, this will clear the request and observer 
+     * buffers.
+     */
+    public synchronized void stop() {
+
+        if (init) {
+            unbindAll(context);
+            for (ServiceRequest request : requests.values()) {
+                PayloadStore.release(request.data);
+            }
+            requests.clear();
+            inflight.clear();
+            detached.clear();
+            for (ServiceFuture future : futures.values()) {
+                ServiceResponse resp = new ServiceResponse(future.getRequestId());
+                resp.status = ServiceResponse.STATUS_CANCELLED;
+                future.complete(resp);
+            }
+            futures.clear();
+            limiter.reset();
+            observers.clear();
+            requestObservers.clear();
+            typeObservers.clear();
+            cache.clear();
+            diskCache.close();
+            restored.clear();
+            sticky.clear();
+            DeliveryBatcher batcher = this.batcher;
+            if (batcher != null) {
+                batcher.clear();
+            }
+            if (journal != null) {
+                journal.close();
+                journal = null;
+            }
+            CountDownLatch recovery = this.recovery;
+            if (recovery != null) {
+                recovery.countDown();
+                this.recovery = null;
+            }
+
+            // the services are unbound so they are destroyed, requests already submitted to their executors still complete
+            context.stopService(new Intent(context, SampleService.class));
+            for (Shard shard : shards) {
+                context.stopService(new Intent(context, shard.service));
+            }
+
+            reaper.shutdownNow();
+            reaper = null;
+            directExecutor.shutdown();
+            directExecutor = null;
+
+            this.context = null;
+            this.init = false;
+        }
+    }
+
+    /** 
+     * Shout the text to the service and wait for the service to respond.
+     * 
+     * @param text The text to send to the service
+     * 
+     * @return The unique request id, this id can be used for the isPending method
+     * to check if the request has already been handled.
+     */
+    public int reverse(String text) {
+        return sendToService(createReverseRequest(text));
+    } 
+
+    /** 
+     * Send the text to the service, the returned future is completed 
+     * with the response of the service.
+     * 
+     * @param text The text to send to the service
+     * 
+     * @return The future of the request
+     */
+    public ServiceFuture reverseAsync(String text) {
+        return submit(createReverseRequest(text));
+    } 
+
+    /** 
+     * Send all texts in one batch request to the service. The response 
+     * contains the reversed texts under the ServiceResponse.KEY_DATA key and the 
+     * per item errors under the ServiceResponse.KEY_ERRORS key, both lists 
+     * have the same order as the given texts.
+     * 
+     * @param texts The texts to send to the service
+     * 
+     * @return The unique request id of the batch request
+     */
+    public int reverseAll(List<String> texts) {
+        return sendToService(createReverseAllRequest(texts));
+    }
+
+    /** 
+     * Send all texts in one batch request to the service, the returned future 
+     * is completed with the response of the service.
+     * 
+     * @param texts The texts to send to the service
+     * 
+     * @return The future of the batch request
+     */
+    public ServiceFuture reverseAllAsync(List<String> texts) {
+        return submit(createReverseAllRequest(texts));
+    }
+
+    /** 
+     * Send the text to the service, the reversed text is streamed back in 
+     * chunks of at most the given size. Every chunk is delivered to 
+     * ServiceObserver.onServiceRequestChunk, the request stays pending until 
+     * the final response is delivered to onServiceRequestCompleted. 
+     * 
+     * @param text      The text to send to the service
+     * @param chunkSize The maximum number of characters in a chunk
+     * 
+     * @return The unique request id
+     */
+    public int reverseStreaming(String text, int chunkSize) {
+
+        if (TextUtils.isEmpty(text)) {
+            throw new IllegalArgumentException("Text cannot be null or empty");
+        }   
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be at least 1");
+        }
+        ServiceRequest request = ServiceRequest.obtain(ServiceRequest.REQ_REVERSE_TEXT_STREAM);
+        request.data.putString(ServiceRequest.KEY_DATA, text);
+        request.data.putInt(ServiceRequest.KEY_CHUNK_SIZE, chunkSize);
+        return sendToService(request);
+    }
+
+    /** 
+     * Send the request to the service, use this method to send requests
+     * with a priority or deadline. The request must not be changed or 
+     * send again after this call.
+     * 
+     * @param request The request to send
+     * 
+     * @return The unique request id
+     */
+    public int send(ServiceRequest request) {
+
+        if (request == null) {
+            throw new IllegalArgumentException("Request cannot be null");
+        }
+        return sendToService(request);
+    }
+
+    /** 
+     * Send the request to the service, the returned future is completed 
+     * with the response of the service. The request must not be changed 
+     * or send again after this call.
+     * 
+     * @param request The request to send
+     * 
+     * @return The future of the request
+     */
+    public ServiceFuture sendAsync(ServiceRequest request) {
+
+        if (request == null) {
+            throw new IllegalArgumentException("Request cannot be null");
+        }
+        return submit(request);
+    }
+
+    /** 
+     * Create the request reversing the text
+     * 
+     * @param text The text to reverse
+     * 
+     * @return The new request 
+     */
+    private static ServiceRequest createReverseRequest(String text) {
+
+        if (TextUtils.isEmpty(text)) {
+            throw new IllegalArgumentException("Text cannot be null or empty");
+        }   
+        ServiceRequest request = ServiceRequest.obtain(ServiceRequest.REQ_REVERSE_TEXT);
+        request.data.putString(ServiceResponse.KEY_DATA, text);
+        return request;
+    }
+
+    /** 
+     * Create the batch request reversing all texts
+     * 
+     * @param texts The texts to reverse
+     * 
+     * @return The new request 
+     */
+    private static ServiceRequest createReverseAllRequest(List<String> texts) {
+
+        if (texts == null || texts.isEmpty()) {
+            throw new IllegalArgumentException("Texts cannot be null or empty");
+        }
+        ServiceRequest request = ServiceRequest.obtain(ServiceRequest.REQ_REVERSE_TEXT_BATCH);
+        request.data.putStringArrayList(ServiceRequest.KEY_DATA, new ArrayList<String>(texts));
+        return request;
+    }
+
+    /** 
+     * Send the request to the service and create the future of the request
+     * 
+     * @param request The request to be send to the service.
+     * 
+     * @return The future of the request
+     */
+    private ServiceFuture submit(ServiceRequest request) {
+
+        // the future is registered first so the response cannot be missed
+        int id = request.id;
+        ServiceFuture future = new ServiceFuture(id, this);
+        futures.put(id, future);
+        try {
+            sendToService(request);
+        } catch (RuntimeException e) {
+            futures.remove(id);
+            throw e;
+        }
+        return future;
+    }
+
+    /** 
+     * Send the request to the service, store the request 
+     * into the internal request buffer.
+     * 
+     * @param request The request to be send to the service.
+     * 
+     * @return The id of the request
+     */
+    private int sendToService(ServiceRequest request) {
+        return sendToService(request, false);
+    }
+
+    /** 
+     * Send the request to the service, store the request 
+     * into the internal request buffer. A recovered request has been admitted
+     * before the process died, it is never blocked, shed or rejected.
+     * 
+     * @param request   The request to be send to the service.
+     * @param recovered Is the request recovered from the journal
+     * 
+     * @return The id of the request
+     */
+    private int sendToService(ServiceRequest request, boolean recovered) {
+
+        // once pending the request may complete and be recycled at any time
+        final int id = request.id;
+        Context context = this.context;
+        if (context == null) {
+            throw new IllegalStateException("ServiceController is missing context, either stopped or not initialised");
+        }
+
+        if (recovered) {
+            limiter.forceAcquire(request.type);
+        } else {
+            admit(request);
+        }
+        request.submitted = System.nanoTime();
+
+        // the chunks of a streaming request cannot be shared or replayed, 
+        // without a key the request is neither cached nor coalesced
+        boolean isCacheable = isCacheable(request.type);
+        if (!request.isStreaming() && (coalescing || isCacheable)) {
+            request.key = request.createKey();
+        }
+        long timeout = this.timeout;
+        request.expires = timeout > 0 ? SystemClock.elapsedRealtime() + timeout : 0;
+
+        if (isCacheable && request.key != null) {
+            ServiceResponse cached = cache.get(request.key);
+            if (cached != null) {
+                requests.put(id, request);
+                postCached(cached.copy(id));
+                return id;
+            }
+        }
+        // the request is pending before it is attached, so the completion 
+        // of the group always finds it
+        requests.put(id, request);
+        metrics.recordQueueDepth(requests.size());
+        RequestJournal journal = this.journal;
+        if (journal != null) {
+            journal.recordSubmitted(request);
+        }
+        scheduleReaper();
+        if (isCacheable && request.key != null && diskCache.contains(request.key)) {
+            if (loadCached(request)) {
+                return id;
+            }
+        }
+        dispatch(context, request);
+        return id;
+    }
+
+    /** 
+     * Dispatch the pending request, the request is attached to an identical 
+     * pending request, executed directly or send to the service.
+     * 
+     * @param context The context used to send the request
+     * @param request The pending request to dispatch
+     */
+    private void dispatch(Context context, ServiceRequest request) {
+
+        if (coalescing && request.key != null && attach(request)) {
+            coalescedCount.incrementAndGet();
+            return;
+        }
+
+        ServiceExecutor executor = directExecutor;
+        if (executor != null && direct.get(request.type)) {
+            executeDirect(executor, request);
+            return;
+        }
+        PayloadStore.externalize(context, request.data);
+        metrics.sampleParcelSize(request.data);
+        request.sent = System.nanoTime();
+        int count = shardCount;
+        if (count > 0) {
+            Shard shard = selectShard(request, count);
+            shard.outstanding.addAndGet(getCost(request.type));
+            sendToShard(context, request, shard);
+            return;
+        }
+        request.transport = TRANSPORT_BOUND;
+        if (!connection.send(request)) {
+            sendIntent(context, request);
+        }
+    }
+
+    /** 
+     * Check if the responses of the request type may be cached, the setting 
+     * of the type overrides the flag of its handler.
+     * 
+     * @param type The request type
+     * 
+     * @return true when responses of the type may be cached
+     */
+    private boolean isCacheable(int type) {
+
+        SparseBooleanArray types = cacheable;
+        int index = types.indexOfKey(type);
+        if (index >= 0) {
+            return types.valueAt(index);
+        }
+        RequestHandler handler = HandlerRegistry.get(type);
+        return handler != null && handler.isCacheable();
+    }
+
+    /** 
+     * Get the expected cost of a request of the type
+     * 
+     * @param type The request type
+     * 
+     * @return The cost of its handler, COST_NORMAL when the type has no handler
+     */
+    private static int getCost(int type) {
+        RequestHandler handler = HandlerRegistry.get(type);
+        return handler != null ? handler.getCost() : RequestHandler.COST_NORMAL;
+    }
+
+    /** 
+     * Select the shard of the request, a request of a routed type is send to 
+     * the shard of its type. Otherwise a connected shard with the lowest cost of 
+     * pending requests is selected, equally loaded shards are selected by the hash of
+     * the request id.
+     * 
+     * @param request   The request to send
+     * @param count     The number of shards
+     * 
+     * @return The selected shard
+     */
+    private Shard selectShard(ServiceRequest request, int count) {
+
+        int route = shardRoutes.get(request.type, -1);
+        if (route >= 0 && route < count) {
+            return shards[route];
+        }
+        int start = (request.id & Integer.MAX_VALUE) % count;
+        Shard best = shards[start];
+        for (int i = 1; i < count; i++) {
+            Shard shard = shards[(start + i) % count];
+            if (shard.connection.isConnected() != best.connection.isConnected()) {
+                if (shard.connection.isConnected()) {
+                    best = shard;
+                }
+            } else if (shard.outstanding.get() < best.outstanding.get()) {
+                best = shard;
+            }
+        }
+        return best;
+    }
+
+    /** 
+     * Send the request to the shard, over its bound connection when connected
+     * or by starting the shard with an Intent. The caller adds the cost of a
+     * pending request to the load of the shard.
+     * 
+     * @param context   The context used to start the shard
+     * @param request   The request to send
+     * @param shard     The shard to send the request to
+     */
+    private void sendToShard(Context context, ServiceRequest request, Shard shard) {
+
+        request.shard = shard.index;
+        request.transport = TRANSPORT_BOUND;
+        if (!shard.connection.send(request)) {
+            sendIntent(context, request);
+        }
+    }
+
+    /** 
+     * Look up the response of the pending request in the disk cache, a 
+     * cached response is delivered on the callback thread. When the response
+     * is not found the request is dispatched from the cache thread.
+     * 
+     * @param request The pending request
+     * 
+     * @return true when the lookup has been started
+     */
+    private boolean loadCached(final ServiceRequest request) {
+
+        final int requestId = request.id;
+        final String key = request.key;
+        return diskCache.get(key, new DiskResultCache.Callback() {
+                @Override
+                public void onResult(ServiceResponse response) {
+                    Context context = ServiceController.this.context;
+                    if (response != null) {
+                        cache.put(key, response);
+                        postCached(response.copy(requestId));
+                    } else if (context != null && requests.get(requestId) == request) {
+                        dispatch(context, request);
+                    }
+                }
+            });
+    }
+
+    /** 
+     * Attach the request to the group of an identical pending request, 
+     * if there is no such group the request becomes the primary request 
+     * of a new group.
+     * 
+     * @param request The request to attach
+     * 
+     * @return true when the request has been attached, false when the 
+     *         request must be send to the service.
+     */
+    private boolean attach(ServiceRequest request) {
+
+        PendingGroup group = new PendingGroup(request);
+        while (true) {
+            PendingGroup pending = inflight.putIfAbsent(request.key, group);
+            if (pending == null) {
+                return false;
+            }
+            if (!pending.matches(request)) {
+                // the payloads or the scheduling differ, the request is send on its own
+                return false;
+            }
+            if (pending.attach(request)) {
+                return true;
+            }
+            // the pending group has just been completed
+            inflight.remove(request.key, pending);
+        }
+    }
+
+    /** 
+     * Execute the request on the direct executor, the request is handled in 
+     * this process and its response is delivered on the callback thread.
+     * 
+     * @param executor  The direct executor 
+     * @param request   The request to execute
+     */
+    private void executeDirect(ServiceExecutor executor, final ServiceRequest request) {
+
+        request.transport = TRANSPORT_DIRECT;
+        request.sent = System.nanoTime();
+        request.received = request.sent;
+        executor.execute(request, new Runnable() {
+                @Override
+                public void run() {
+                    postResponse(ServiceHandler.handle(request, directSink));
+                }
+            });
+    }
+
+    /** 
+     * Send the request to the service by starting the service with an Intent
+     * 
+     * @param context The context used to start the service
+     * @param request The request to be send to the service.
+     */
+    private void sendIntent(Context context, ServiceRequest request) {
+
+        // add the result receiver to the request object
+        request.receiver = receiver;
+
+        request.transport = TRANSPORT_INTENT;
+        Class<?> service = request.shard >= 0 ? shards[request.shard].service : SampleService.class;
+        Intent intent = SampleService.createSampleServiceIntent(context, service, request);
+        context.startService(intent);
+    }
+
+    /** 
+     * Acquire a permit for the request, the admission policy is applied when 
+     * a limit of pending requests has been reached.
+     * 
+     * @param request The request to admit
+     */
+    private void admit(ServiceRequest request) {
+
+        if (limiter.tryAcquire(request.type)) {
+            return;
+        }
+        switch (policy) {
+        case POLICY_BLOCK:
+            Looper looper = Looper.myLooper();
+            if (looper == Looper.getMainLooper() || looper == callbackHandler.getLooper()) {
+                // responses are received on the callback thread and delivered on
+                // the main thread, neither must ever wait
+                reject(request, "Cannot block the thread " + Thread.currentThread().getName(), 0);
+            }
+            try {
+                long timeout = this.timeout;
+                if (limiter.acquire(request.type, timeout > 0 ? timeout : Long.MAX_VALUE)) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            reject(request, "No request completed in time", 0);
+            break;
+        case POLICY_SHED_OLDEST:
+            int victim = findSheddable(request);
+            if (victim != 0 && abort(victim, ServiceResponse.STATUS_SHED)) {
+                shedCount.incrementAndGet();
+                if (limiter.tryAcquire(request.type)) {
+                    return;
+                }
+            }
+            reject(request, "No request to shed", 0);
+            break;
+        case POLICY_RETRY_AFTER:
+            reject(request, "Too many pending requests", limiter.estimateRetryAfter());
+            break;
+        default:
+            reject(request, "Too many pending requests", 0);
+            break;
+        }
+    }
+
+    /** 
+     * Reject the request that has not been admitted
+     * 
+     * @param request       The rejected request
+     * @param reason        The reason of the rejection
+     * @param retryAfter    The time after which the request may be send again
+     */
+    private void reject(ServiceRequest request, String reason, long retryAfter) {
+        rejectedCount.incrementAndGet();
+        throw new ServiceRejectedException(reason + ": " + request, retryAfter);
+    }
+
+    /** 
+     * Find the pending request that may be shed to admit the new request, this is
+     * the oldest request with the lowest priority. Its priority may not be higher
+     * than the priority of the new request and when the limit of the request type 
+     * has been reached it must be of the same type. 
+     * 
+     * @param request The new request
+     * 
+     * @return The id of the request to shed or 0 if none 
+     */
+    private int findSheddable(ServiceRequest request) {
+
+        boolean sameType = limiter.isTypeFull(request.type);
+        ServiceRequest victim = null;
+        int victimId = 0;
+
+        for (Map.Entry<Integer, ServiceRequest> entry : requests.entrySet()) {
+            ServiceRequest pending = entry.getValue();
+            if (pending.priority > request.priority || (sameType && pending.type != request.type)) {
+                continue;
+            }
+            if (victim == null || pending.priority < victim.priority 
+                || (pending.priority == victim.priority && pending.submitted < victim.submitted)) {
+                victim = pending;
+                victimId = entry.getKey();
+            }
+        }
+        return victimId;
+    }
+
+    /** 
+     * Abort the pending request, the request is completed with a response 
+     * holding the given status. 
+     * 
+     * @param requestId The id of the request to abort
+     * @param status    The status of the response
+     * 
+     * @return true when the request has been aborted, false when it is not pending
+     */
+    private boolean abort(int requestId, int status) {
+
+        final ServiceRequest req = removePending(requestId);
+        if (req == null) {
+            return false;
+        }
+        PendingGroup group = req.key != null ? inflight.get(req.key) : null;
+        if (group != null && group.primary == req && !group.closeIfIdle(requests)) {
+            // the attached requests still wait for the response of the service
+            detached.put(req.id, req);
+        } else {
+            if (group != null && group.primary == req) {
+                inflight.remove(req.key, group);
+            }
+            PayloadStore.release(req.data);
+            cancelInService(req);
+        }
+        final ServiceResponse resp = new ServiceResponse(requestId);
+        resp.status = status;
+        callbackHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    notifyObservers(req, resp);
+                }
+            });
+        return true;
+    }
+
+    /** 
+     * Tell the service to drop the request when it has not been started yet
+     * 
+     * @param req The request to drop
+     */
+    private void cancelInService(ServiceRequest req) {
+
+        Context context = this.context;
+        if (req.transport == TRANSPORT_NONE || context == null) {
+            return;
+        }
+        if (req.transport == TRANSPORT_DIRECT) {
+            ServiceExecutor executor = directExecutor;
+            if (executor != null) {
+                executor.cancel(req.id);
+            }
+            return;
+        }
+        Shard shard = req.shard >= 0 ? shards[req.shard] : null;
+        BoundServiceConnection connection = shard != null ? shard.connection : this.connection;
+        if (req.transport == TRANSPORT_BOUND && connection.cancel(req.id)) {
+            return;
+        }
+        Class<?> service = shard != null ? shard.service : SampleService.class;
+        context.startService(SampleService.createCancelIntent(context, service, req.id));
+    }
+
+    /** 
+     * Schedule the reaper if it is not scheduled yet
+     */
+    private void scheduleReaper() {
+
+        ScheduledExecutorService reaper = this.reaper;
+        if (reaper == null || !reaping.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            reaper.schedule(reapTask, REAPER_INTERVAL, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // the ServiceController has been stopped
+            reaping.set(false);
+        }
+    }
+
+    /** 
+     * Expire the pending requests that passed their timeout and drop the 
+     * detached requests no other request is waiting for. The reaper 
+     * reschedules itself as long as there are pending requests.
+     */
+    private void reap() {
+
+        // the ids are taken from the keys, a completed request may be recycled meanwhile
+        long now = SystemClock.elapsedRealtime();
+        for (Map.Entry<Integer, ServiceRequest> entry : requests.entrySet()) {
+            ServiceRequest req = entry.getValue();
+            if (req.expires != 0 && now >= req.expires && abort(entry.getKey(), ServiceResponse.STATUS_TIMEOUT)) {
+                Log.w(TAG, "Request expired: " + entry.getKey());
+            }
+        }
+        for (ServiceRequest req : detached.values()) {
+            PendingGroup group = inflight.get(req.key);
+            if (group != null && group.primary == req && !group.closeIfIdle(requests)) {
+                continue;
+            }
+            if (detached.remove(req.id, req)) {
+                if (group != null && group.primary == req) {
+                    inflight.remove(req.key, group);
+                }
+                PayloadStore.release(req.data);
+                cancelInService(req);
+            }
+        }
+        reaping.set(false);
+        if (!requests.isEmpty() || !detached.isEmpty()) {
+            scheduleReaper();
+        }
+    }
+
+    /** 
+     * Delete the payload files left behind by a previous process in the background
+     */
+    private void purgePayloads() {
+
+        final Context context = this.context;
+        new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    PayloadStore.purge(context);
+                }
+            }, "ServiceController-purge").start();
+    }
+
+    /** 
+     * Open the journal of requests on the reaper thread, only the highest 
+     * journaled request id is read by the calling thread so new requests never
+     * reuse the ids of journaled requests. Requests submitted before the journal
+     * has been recovered are not journaled. A journal that cannot be opened is ignored.
+     * 
+     * @param file The journal file
+     */
+    private void openJournal(final File file) {
+
+        ServiceRequest.reserveIds(RequestJournal.readMaxId(file));
+        final ScheduledExecutorService reaper = this.reaper;
+        final CountDownLatch recovery = new CountDownLatch(1);
+        this.recovery = recovery;
+        reaper.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        recoverJournal(new RequestJournal(file, reaper), reaper);
+                    } finally {
+                        recovery.countDown();
+                    }
+                }
+            });
+    }
+
+    /** 
+     * Recover the journal of requests, the pending requests are send again and 
+     * the completed responses are kept until they are claimed by an observer. 
+     * 
+     * @param journal   The journal to recover
+     * @param reaper    The reaper of the initialization opening the journal
+     */
+    private void recoverJournal(RequestJournal journal, ScheduledExecutorService reaper) {
+
+        try {
+            journal.open();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to open the request journal", e);
+            return;
+        }
+        ServiceRequest.reserveIds(journal.getMaxId());
+        List<ServiceResponse> completed = journal.getCompletedResponses();
+        List<ServiceRequest> pending = journal.getPendingRequests();
+        synchronized (this) {
+            if (this.reaper != reaper) {
+                // stopped while recovering
+                journal.close();
+                return;
+            }
+            for (ServiceResponse resp : completed) {
+                restored.put(resp.requestId, resp);
+            }
+            this.journal = journal;
+        }
+        // recovery runs on the reaper thread, waiting for admission would stall
+        // the expiry of the very requests that free the permits
+        for (ServiceRequest request : pending) {
+            try {
+                sendToService(request, true);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Failed to resend journaled " + request, e);
+                journal.remove(request.id);
+            }
+        }
+    }
+
+    /** 
+     * Wait until the journal has been recovered, so its pending requests have 
+     * been send and its completed responses can be claimed.
+     */
+    private void awaitRecovery() {
+
+        CountDownLatch recovery = this.recovery;
+        if (recovery == null) {
+            return;
+        }
+        try {
+            recovery.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** 
+     * Deliver the buffered or restored response of the completed request to
+     * the observer, a restored response is removed from the journal.
+     * 
+     * @param requestId The id of the completed request
+     * @param delivery  The observer claiming the response
+     * 
+     * @return true when a response has been found
+     */
+    private boolean claimCompleted(int requestId, final Delivery delivery) {
+
+        if (!delivery.complete()) {
+            // the observer was taken with the other observers of the request
+            return true;
+        }
+        ServiceResponse found = sticky.claim(requestId);
+        if (found == null) {
+            found = restored.remove(requestId);
+        }
+        if (found == null) {
+            return false;
+        }
+        RequestJournal journal = this.journal;
+        if (journal != null) {
+            journal.remove(requestId);
+        }
+        final ServiceResponse resp = found;
+        callbackHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    delivery.dispatch(resp, false);
+                }
+            });
+        return true;
+    }
+
+    /** 
+     * Resend the pending requests that were send over the bound connection 
+     * after the connection to the service has been lost. The detached requests
+     * are send again as well, the requests attached to them still wait for
+     * their response.
+     */
+    private void resendBoundRequests() {
+
+        Context context = this.context;
+        if (context == null) {
+            return;
+        }
+        synchronized (resendLock) {
+            for (ServiceRequest request : requests.values()) {
+                if (request.transport == TRANSPORT_BOUND && request.shard < 0) {
+                    Log.i(TAG, "Resending " + request);
+                    sendIntent(context, request);
+                }
+            }
+            for (ServiceRequest request : detached.values()) {
+                if (request.transport == TRANSPORT_BOUND && request.shard < 0) {
+                    Log.i(TAG, "Resending detached " + request);
+                    sendIntent(context, request);
+                }
+            }
+        }
+    }
+
+    /** 
+     * Resend the pending requests of the shard after its process died, the 
+     * requests are send to the selected shards again. Requests of a type routed
+     * to the shard restart its process.
+     * 
+     * @param index The index of the shard
+     */
+    private void resendShardRequests(int index) {
+
+        Context context = this.context;
+        int count = shardCount;
+        if (context == null || count == 0) {
+            return;
+        }
+        Shard dead = shards[index];
+        synchronized (resendLock) {
+            for (ServiceRequest request : requests.values()) {
+                if (request.shard == index) {
+                    Log.i(TAG, "Resending " + request + " of shard " + index);
+                    // the counts are a load estimate, a request completing meanwhile may skew them
+                    dead.outstanding.addAndGet(-getCost(request.type));
+                    Shard shard = selectShard(request, count);
+                    shard.outstanding.addAndGet(getCost(request.type));
+                    sendToShard(context, request, shard);
+                }
+            }
+            // the cost of a detached request has been removed from the load when it was detached
+            for (ServiceRequest request : detached.values()) {
+                if (request.shard == index) {
+                    Log.i(TAG, "Resending detached " + request + " of shard " + index);
+                    sendToShard(context, request, selectShard(request, count));
+                }
+            }
+        }
+    }
+
+    /** 
+     * Unbind from the service and all its shards
+     * 
+     * @param context The context used to bind
+     */
+    private void unbindAll(Context context) {
+
+        connection.unbind(context);
+        for (Shard shard : shards) {
+            shard.connection.unbind(context);
+        }
+    }
+
+    /** 
+     * Deliver the response on the callback thread as if it was received from the service
+     * 
+     * @param resp The response to deliver
+     */
+    private void postResponse(final ServiceResponse resp) {
+        callbackHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    notifyListeners(resp.requestId, resp);
+                }
+            });
+    }
+
+    /** 
+     * Deliver the response served from a cache, the response is not stored 
+     * in the caches again.
+     * 
+     * @param resp The copy of the cached response
+     */
+    private void postCached(ServiceResponse resp) {
+        resp.cached = true;
+        postResponse(resp);
+    }
+
+    /** 
+     * Notify all observers that are registered to this 
+     * ServiceController
+     * 
+     * @param requestId The id of the request that is completed 
+     * @param bundle The bundle containing the response data
+     */
+    private void notifyListeners(int requestId, Bundle bundle) {
+        ServiceResponse resp = bundle.getParcelable(SampleService.KEY_SERVICERESPONSE);
+        PayloadStore.inline(resp.data);
+        notifyListeners(requestId, resp);
+    }
+
+    /** 
+     * Notify all observers that are registered to this 
+     * ServiceController
+     * 
+     * @param requestId The id of the request that is completed 
+     * @param resp The response of the request
+     */
+    void notifyListeners(int requestId, ServiceResponse resp) {
+
+        if (!resp.complete) {
+            ServiceRequest req = requests.get(requestId);
+            if (req != null) {
+                notifyChunk(req, resp);
+            }
+            return;
+        }
+        // a detached request only completes the requests attached to it
+        boolean notify = true;
+        ServiceRequest req = removePending(requestId);
+        if (req == null) {
+            req = detached.remove(requestId);
+            notify = false;
+        }
+        if (req == null) {
+            return;
+        }
+        PayloadStore.release(req.data);
+        if (req.key != null && resp.isOk() && !resp.cached && isCacheable(req.type)) {
+            ServiceResponse copy = resp.copy(requestId);
+            cache.put(req.key, copy);
+            diskCache.put(req.key, copy);
+        }
+        List<ServiceRequest> list = null;
+        if (req.key != null) {
+            PendingGroup group = inflight.get(req.key);
+            if (group != null && group.primary == req) {
+                inflight.remove(req.key, group);
+                list = group.close();
+            }
+        }
+        // an aborted request is not recycled, its notification may still be pending
+        if (notify) {
+            notifyObservers(req, resp);
+            recycle(req);
+        }
+        if (list == null) {
+            return;
+        }
+        for (ServiceRequest dup : list) {
+            if (removePending(dup.id) != null) {
+                notifyObservers(dup, resp.copy(dup.id));
+                recycle(dup);
+            }
+        }
+    }
+
+    /** 
+     * Remove the pending request and release its admission permit
+     * 
+     * @param requestId The id of the request
+     * 
+     * @return The removed request or null if it was not pending
+     */
+    private ServiceRequest removePending(int requestId) {
+
+        ServiceRequest req = requests.remove(requestId);
+        if (req != null) {
+            if (req.shard >= 0) {
+                shards[req.shard].outstanding.addAndGet(-getCost(req.type));
+            }
+            limiter.release(req.type, (System.nanoTime() - req.submitted) / 1000000);
+        }
+        return req;
+    }
+
+    /** 
+     * Return the completed request to the pool when no one else can reach it.
+     * A request executed directly or send over a bound connection is handed 
+     * over by reference in this process, so only requests send with an Intent
+     * and attached requests that were never send are recycled. The request 
+     * must have been removed from the pending requests, a resend that took it
+     * before is waited for.
+     * 
+     * @param req The completed request
+     */
+    private void recycle(ServiceRequest req) {
+
+        if (req.transport != TRANSPORT_INTENT && req.transport != TRANSPORT_NONE) {
+            return;
+        }
+        synchronized (resendLock) {
+            req.recycle();
+        }
+    }
+
+    /** 
+     * Notify the observers of the completed request, the one-shot observers 
+     * of the request are removed.
+     * 
+     * @param req  The completed request
+     * @param resp The response of the completed request
+     */
+    void notifyObservers(ServiceRequest req, ServiceResponse resp) {
+
+        metrics.recordResponse(req, resp, System.nanoTime());
+        RequestJournal journal = this.journal;
+        if (journal != null) {
+            journal.recordCompleted(resp);
+        }
+        // buffered before the observers of the request are taken, an observer added
+        // meanwhile may be taken and claim the buffered response as well
+        sticky.put(resp);
+
+        List<Delivery> main = deliver(observers, resp, false, null);
+        CopyOnWriteArraySet<Delivery> set = typeObservers.get(req.type);
+        if (set != null) {
+            main = deliver(set, resp, false, main);
+        }
+        CopyOnWriteArrayList<Delivery> list = requestObservers.remove(req.id);
+        if (list != null) {
+            // only the first of both deliveries reaches the observer
+            List<Delivery> once = new ArrayList<Delivery>(list.size());
+            for (Delivery delivery : list) {
+                if (delivery.complete()) {
+                    once.add(delivery);
+                }
+            }
+            main = deliver(once, resp, false, main);
+        }
+        if (main != null) {
+            deliverOnMain(main, resp, false);
+        }
+        ServiceFuture future = futures.remove(req.id);
+        if (future != null) {
+            future.complete(resp);
+        }
+    }
+
+    /** 
+     * Notify the observers of the request that a chunk has been received
+     * 
+     * @param req  The streaming request
+     * @param resp The response containing the chunk
+     */
+    private void notifyChunk(ServiceRequest req, ServiceResponse resp) {
+
+        List<Delivery> main = deliver(observers, resp, true, null);
+        CopyOnWriteArraySet<Delivery> set = typeObservers.get(req.type);
+        if (set != null) {
+            main = deliver(set, resp, true, main);
+        }
+        CopyOnWriteArrayList<Delivery> list = requestObservers.get(req.id);
+        if (list != null) {
+            main = deliver(list, resp, true, main);
+        }
+        if (main != null) {
+            deliverOnMain(main, resp, true);
+        }
+    }
+
+    /** 
+     * Deliver the response to the observers, the observers called on the main 
+     * thread are collected so they can be called from a single message.
+     * 
+     * @param deliveries    The observers with their executors
+     * @param resp          The response to deliver
+     * @param chunk         true when the response is a chunk
+     * @param main          The observers collected for the main thread, may be null
+     * 
+     * @return The observers collected for the main thread, null if none
+     */
+    private List<Delivery> deliver(Iterable<Delivery> deliveries, ServiceResponse resp, boolean chunk, List<Delivery> main) {
+
+        for (Delivery delivery : deliveries) {
+            if (delivery.executor == mainExecutor) {
+                if (main == null) {
+                    main = new ArrayList<Delivery>();
+                }
+                main.add(delivery);
+            } else {
+                delivery.dispatch(resp, chunk);
+            }
+        }
+        return main;
+    }
+
+    /** 
+     * Call the observers with the response on the main thread, completions are
+     * added to the batch when delivery is batched.
+     * 
+     * @param main  The observers to call
+     * @param resp  The response to deliver
+     * @param chunk true when the response is a chunk
+     */
+    private void deliverOnMain(final List<Delivery> main, final ServiceResponse resp, final boolean chunk) {
+
+        DeliveryBatcher batcher = this.batcher;
+        if (batcher != null && !chunk) {
+            for (Delivery delivery : main) {
+                batcher.add(delivery.observer, resp);
+            }
+            return;
+        }
+        handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (Delivery delivery : main) {
+                        delivery.call(resp, chunk);
+                    }
+                }
+            });
+    }
+
+    /**
+     * A shard of the service running in its own process
+     */
+    private final static class Shard {
+
+        /** The index of this shard */
+        final int index;
+
+        /** The class of the service of this shard */
+        final Class<?> service;
+
+        /** The connection to the service of this shard */
+        final BoundServiceConnection connection;
+
+        /** The expected cost of the pending requests send to this shard */
+        final AtomicInteger outstanding;
+
+        Shard(int index, Class<?> service, BoundServiceConnection connection) {
+            this.index = index;
+            this.service = service;
+            this.connection = connection;
+            this.outstanding = new AtomicInteger();
+        }
+    }
+
+    /**
+     * The group of identical pending requests, only the primary request is send
+     * to the service. The attached requests receive a copy of its response.
+     */
+    private final static class PendingGroup {
+
+        /** The request that is send to the service */
+        final ServiceRequest primary;
+
+        /** 
+         * The type and data of the primary request, the data is a shallow copy 
+         * taken before the primary request is externalized
+         */
+        private final int type;
+        private final Bundle data;
+
+        /** The priority and deadline of the primary request */
+        private final int priority;
+        private final long deadline;
+
+        /** The requests attached to the primary request */
+        private ArrayList<ServiceRequest> attached;
+
+        /** Is the primary request completed */
+        private boolean closed;
+
+        PendingGroup(ServiceRequest primary) {
+            this.primary = primary;
+            this.type = primary.type;
+            this.data = new Bundle(primary.data);
+            this.priority = primary.priority;
+            this.deadline = primary.deadline;
+        }
+
+        /**
+         * Check if the request is identical to the primary request and may share 
+         * its execution. The primary must not have a lower priority, otherwise the
+         * request would inherit its position in the queue, and it must have the 
+         * same deadline, otherwise the request would inherit its expiry.
+         *
+         * @param request The request with the key of this group
+         *
+         * @return true when the request may be attached to this group
+         */
+        boolean matches(ServiceRequest request) {
+            return priority >= request.priority && deadline == request.deadline
+                && request.sameData(type, data);
+        }
+
+        /**
+         * Attach the request to this group
+         *
+         * @param request The request to attach
+         *
+         * @return true when attached, false when this group is already completed
+         */
+        synchronized boolean attach(ServiceRequest request) {
+
+            if (closed) {
+                return false;
+            }
+            if (attached == null) {
+                attached = new ArrayList<ServiceRequest>(2);
+            }
+            attached.add(request);
+            return true;
+        }
+
+        /**
+         * Close this group when none of the attached requests is pending
+         *
+         * @param requests The pending requests
+         *
+         * @return true when closed, false when attached requests are still pending
+         */
+        synchronized boolean closeIfIdle(Map<Integer, ServiceRequest> requests) {
+
+            if (attached != null) {
+                for (ServiceRequest request : attached) {
+                    if (requests.containsKey(request.id)) {
+                        return false;
+                    }
+                }
+            }
+            closed = true;
+            return true;
+        }
+
+        /**
+         * Close this group after the primary request has been completed
+         *
+         * @return The attached requests or null if none
+         */
+        synchronized List<ServiceRequest> close() {
+            closed = true;
+            return attached;
+        }
+    }
+
+    /**
+     * The observer together with the executor that calls it, deliveries 
+     * are equal when their observers are equal.
+     */
+    private final static class Delivery {
+
+        /** The observer to notify */
+        final ServiceObserver observer;
+
+        /** The executor calling the observer, null to call it on the delivering thread */
+        final Executor executor;
+
+        /** Has the final response of the observed request been delivered */
+        private final AtomicBoolean completed;
+
+        Delivery(ServiceObserver observer, Executor executor) {
+            this.observer  = observer;
+            this.executor  = executor;
+            this.completed = new AtomicBoolean();
+        }
+
+        /**
+         * Mark the final response of the observed request as delivered, an 
+         * observer of a single request receives its final response only once.
+         *
+         * @return true when the response may be delivered, false when it has been delivered already
+         */
+        boolean complete() {
+            return completed.compareAndSet(false, true);
+        }
+
+        void dispatch(final ServiceResponse resp, final boolean chunk) {
+
+            if (executor == null) {
+                call(resp, chunk);
+                return;
+            }
+            executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        call(resp, chunk);
+                    }
+                });
+        }
+
+        void call(ServiceResponse resp, boolean chunk) {
+            if (chunk) {
+                observer.onServiceRequestChunk(resp);
+            } else {
+                observer.onServiceRequestCompleted(resp);
+            }
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Delivery && observer.equals(((Delivery)obj).observer);
+        }
+
+        @Override
+        public int hashCode() {
+            return observer.hashCode();
+        }
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ * This file is part of Siebe Projects samples.
+ *
+ * Siebe Projects samples is free software: you can redistribute it and/or modify
+ * it under the terms of the Lesser GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Siebe Projects samples is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Lesser GNU General Public License for more details.
+ *
+ * You should have received a copy of the Lesser GNU General Public License
+ * along with Siebe Projects samples.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.siebeprojects.samples.controller.service;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The execution engine of the SampleService. Requests are executed on a
+ * bounded pool of worker threads. A request type may be given a concurrency
+ * limit, requests exceeding the limit of their type are held back until
+ * a running request of the same type has been completed.
+ * Waiting requests are started in order of priority, requests of the same 
+ * priority in order of their deadline and then in order of submission. 
+ * A request that has not been started yet can be cancelled.
+ */
+final class ServiceExecutor {
+
+    /** The time idle worker threads are kept alive */
+    private final static long KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * The listener that is notified when the executor has run out of work.
+     */
+    interface Listener {
+
+        /**
+         * Called from a worker thread when the last submitted request
+         * has been completed.
+         */
+        void onIdle();
+    }
+
+    /** The pool of worker threads */
+    private final ThreadPoolExecutor pool;
+
+    /** The concurrency limits per request type, 0 means no limit */
+    private final SparseIntArray limits;
+
+    /** The number of running requests per request type */
+    private final SparseIntArray running;
+
+    /** The workers held back because their type reached its limit */
+    private final SparseArray<PriorityQueue<Worker>> waiting;
+
+    /** The ids of the requests that are submitted but not started */
+    private final HashSet<Integer> queued;
+
+    /** The ids of the queued requests that have been cancelled */
+    private final HashSet<Integer> cancelled;
+
+    /** The listener to notify when all work is done */
+    private final Listener listener;
+
+    /** The number of submitted requests that have not been completed */
+    private int active;
+
+    /** The sequence number of the submitted requests, keeps the order within a priority */
+    private long sequence;
+
+    /** The queue wait statistics per priority class */
+    private final long[] waitCount;
+    private final long[] waitTotal;
+    private final long[] waitMax;
+
+    /**
+     * Construct a new ServiceExecutor
+     *
+     * @param poolSize  The maximum number of worker threads
+     * @param limits    The concurrency limits per request type
+     * @param listener  The listener to notify when all work is done
+     */
+    ServiceExecutor(int poolSize, SparseIntArray limits, Listener listener) {
+
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1");
+        }
+        this.limits    = limits;
+        this.listener  = listener;
+        this.running   = new SparseIntArray();
+        this.waiting   = new SparseArray<PriorityQueue<Worker>>();
+        this.queued    = new HashSet<Integer>();
+        this.cancelled = new HashSet<Integer>();
+
+        int priorities = ServiceRequest.PRIORITY_HIGH + 1;
+        this.waitCount = new long[priorities];
+        this.waitTotal = new long[priorities];
+        this.waitMax   = new long[priorities];
+
+        pool = new ThreadPoolExecutor(poolSize, poolSize, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                                      new PriorityBlockingQueue<Runnable>(), new WorkerFactory());
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Execute the task of the request
+     *
+     * @param request   The request to execute
+     * @param task      The task executing the request
+     */
+    void execute(ServiceRequest request, Runnable task) {
+
+        Worker worker;
+        synchronized (this) {
+            worker = new Worker(request, task, sequence++);
+            active++;
+            queued.add(worker.id);
+            int limit = limits.get(worker.type, 0);
+            int count = running.get(worker.type, 0);
+
+            if (limit > 0 && count >= limit) {
+                PriorityQueue<Worker> queue = waiting.get(worker.type);
+                if (queue == null) {
+                    queue = new PriorityQueue<Worker>();
+                    waiting.put(worker.type, queue);
+                }
+                queue.add(worker);
+                return;
+            }
+            running.put(worker.type, count + 1);
+        }
+        pool.execute(worker);
+    }
+
+    /**
+     * Cancel the request with the given id, the request is skipped when it
+     * has not been started yet.
+     *
+     * @param id The id of the request
+     *
+     * @return true when the request will be skipped, false when it is 
+     *         already running or unknown
+     */
+    synchronized boolean cancel(int id) {
+        return queued.contains(id) && cancelled.add(id);
+    }
+
+    /**
+     * Check if this executor has no submitted requests left
+     *
+     * @return true when all requests have been completed, false otherwise
+     */
+    synchronized boolean isIdle() {
+        return active == 0;
+    }
+
+    /**
+     * Get the number of submitted requests that have not been completed
+     *
+     * @return The number of queued and running requests
+     */
+    synchronized int getActiveCount() {
+        return active;
+    }
+
+    /**
+     * Get the queue wait statistics of every priority class
+     *
+     * @return The statistics, one line per priority class
+     */
+    synchronized String getWaitStatistics() {
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = waitCount.length - 1; i >= 0; i--) {
+            long count = waitCount[i];
+            sb.append("priority ");
+            sb.append(i);
+            sb.append(": count ");
+            sb.append(count);
+            sb.append(", avg wait ");
+            sb.append(count > 0 ? waitTotal[i] / count : 0);
+            sb.append(" ms, max wait ");
+            sb.append(waitMax[i]);
+            sb.append(" ms\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Start all worker threads so the first requests do not wait for thread 
+     * creation, idle workers still time out after the keep alive time.
+     */
+    void prestart() {
+        pool.prestartAllCoreThreads();
+    }
+
+    /**
+     * Shutdown this executor, requests that are already submitted will
+     * still be completed. Requests held back by the limit of their type
+     * are run by the worker completing the previous request of their type.
+     */
+    void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Called by the worker when a task has been completed, this will
+     * start the next waiting task of the same type if any.
+     *
+     * @param type The type of the request that has been completed
+     *
+     * @return The waiting worker to run on the calling thread because this
+     *         executor has been shut down, null if none
+     */
+    private Worker completed(int type) {
+
+        Worker next = null;
+        boolean idle;
+
+        synchronized (this) {
+            active--;
+            PriorityQueue<Worker> queue = waiting.get(type);
+
+            if (queue != null && !queue.isEmpty()) {
+                next = queue.poll();
+            } else {
+                running.put(type, running.get(type, 0) - 1);
+            }
+            idle = active == 0;
+        }
+        if (next != null) {
+            try {
+                pool.execute(next);
+                next = null;
+            } catch (RejectedExecutionException e) {
+                // shut down, the waiting request still completes on this worker
+            }
+        }
+        if (idle) {
+            listener.onIdle();
+        }
+        return next;
+    }
+
+    /**
+     * Record the time the request has been waiting in the queue
+     *
+     * @param priority  The priority of the request
+     * @param wait      The wait time in milliseconds
+     */
+    private void recordWait(int priority, long wait) {
+
+        int i = Math.max(0, Math.min(priority, waitCount.length - 1));
+        waitCount[i]++;
+        waitTotal[i] += wait;
+        waitMax[i] = Math.max(waitMax[i], wait);
+    }
+
+    /**
+     * The runnable wrapping the task of a request, it signals the
+     * executor when the task has been completed. Workers are ordered
+     * by priority, deadline and submission.
+     */
+    private final class Worker implements Runnable, Comparable<Worker> {
+
+        /** The id of the request */
+        private final int id;
+
+        /** The type of the request */
+        private final int type;
+
+        /** The priority of the request */
+        private final int priority;
+
+        /** The deadline of the request, Long.MAX_VALUE if it has none */
+        private final long deadline;
+
+        /** The submission sequence number */
+        private final long sequence;
+
+        /** The elapsed realtime the request has been submitted */
+        private final long submitted;
+
+        /** The task executing the request */
+        private final Runnable task;
+
+        Worker(ServiceRequest request, Runnable task, long sequence) {
+            this.id        = request.id;
+            this.type      = request.type;
+            this.priority  = request.priority;
+            this.deadline  = request.deadline != 0 ? request.deadline : Long.MAX_VALUE;
+            this.sequence  = sequence;
+            this.submitted = SystemClock.elapsedRealtime();
+            this.task      = task;
+        }
+
+        @Override
+        public int compareTo(Worker other) {
+
+            if (priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+            if (deadline != other.deadline) {
+                return deadline < other.deadline ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+
+        @Override
+        public void run() {
+
+            Worker worker = this;
+            while (worker != null) {
+                worker = worker.runTask();
+            }
+        }
+
+        /**
+         * Run the task unless it has been cancelled
+         *
+         * @return The waiting worker to run next on this thread, null if none
+         */
+        private Worker runTask() {
+
+            boolean skip;
+            synchronized (ServiceExecutor.this) {
+                queued.remove(id);
+                skip = cancelled.remove(id);
+                recordWait(priority, SystemClock.elapsedRealtime() - submitted);
+            }
+            try {
+                if (!skip) {
+                    task.run();
+                }
+            } catch (RuntimeException e) {
+                // a failed task does not drop the waiting request of a shut down executor
+                Worker next = completed(type);
+                if (next != null) {
+                    next.run();
+                }
+                throw e;
+            }
+            return completed(type);
+        }
+    }
+
+    /**
+     * The factory creating background priority worker threads.
+     */
+    private final static class WorkerFactory implements ThreadFactory {
+
+        /** The sequence number used for naming the worker threads */
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+
+            Runnable background = new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                };
+            return new Thread(background, "SampleService-worker-" + count.incrementAndGet());
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * This file is part of Siebe Projects samples.
+ *
+ * Siebe Projects samples is free software: you can redistribute it and/or modify
+ * it under the terms of the Lesser GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Siebe Projects samples is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Lesser GNU General Public License for more details.
+ *
+ * You should have received a copy of the Lesser GNU General Public License
+ * along with Siebe Projects samples.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.siebeprojects.samples.controller.service;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The future holding the response of a request send through one of the
+ * asynchronous methods of the ServiceController. A request that timed out
+ * or failed completes this future with a response holding the status,
+ * a cancelled request causes get to throw a CancellationException.
+ */
+public final class ServiceFuture implements Future<ServiceResponse> {
+
+    /** The id of the request */
+    private final int requestId;
+
+    /** The controller that sends the request */
+    private final ServiceController controller;
+
+    /** The response of the request, null while the request is pending */
+    private ServiceResponse response;
+
+    /** The observers to notify when the request is completed */
+    private ArrayList<Callback> callbacks;
+
+    /**
+     * Construct a new ServiceFuture
+     *
+     * @param requestId     The id of the request
+     * @param controller    The controller that sends the request
+     */
+    ServiceFuture(int requestId, ServiceController controller) {
+        this.requestId = requestId;
+        this.controller = controller;
+    }
+
+    /**
+     * Get the id of the request of this future
+     *
+     * @return The request id
+     */
+    public int getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * Add an observer that is notified when the request is completed or cancelled.
+     * The observer is notified immediately when the request is already done.
+     *
+     * @param observer  The observer to notify
+     * @param executor  The executor that calls the observer, or null to call the
+     *                  observer on the thread completing the request
+     */
+    public void addObserver(ServiceObserver observer, Executor executor) {
+
+        if (observer == null) {
+            throw new IllegalArgumentException("Observer cannot be null");
+        }
+        Callback callback = new Callback(observer, executor);
+        ServiceResponse done;
+
+        synchronized (this) {
+            done = response;
+            if (done == null) {
+                if (callbacks == null) {
+                    callbacks = new ArrayList<Callback>(1);
+                }
+                callbacks.add(callback);
+                return;
+            }
+        }
+        callback.dispatch(done);
+    }
+
+    /**
+     * Cancel the request, the service drops the request when it has not
+     * been started yet.
+     *
+     * @param mayInterruptIfRunning Ignored, a running request is never interrupted
+     *
+     * @return true when the request has been cancelled, false when it is already done
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+
+        ServiceResponse cancelled = new ServiceResponse(requestId);
+        cancelled.status = ServiceResponse.STATUS_CANCELLED;
+
+        if (!complete(cancelled)) {
+            return false;
+        }
+        controller.cancel(requestId);
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized boolean isCancelled() {
+        return response != null && response.status == ServiceResponse.STATUS_CANCELLED;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized boolean isDone() {
+        return response != null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized ServiceResponse get() throws InterruptedException {
+
+        while (response == null) {
+            wait();
+        }
+        return result();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized ServiceResponse get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+
+        long remaining = unit.toNanos(timeout);
+        long end = System.nanoTime() + remaining;
+
+        while (response == null) {
+            if (remaining <= 0) {
+                throw new TimeoutException("No response for request " + requestId);
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            remaining = end - System.nanoTime();
+        }
+        return result();
+    }
+
+    /**
+     * Complete this future with the response
+     *
+     * @param resp The response of the request
+     *
+     * @return true when completed, false when this future was already done
+     */
+    boolean complete(ServiceResponse resp) {
+
+        ArrayList<Callback> list;
+        synchronized (this) {
+            if (response != null) {
+                return false;
+            }
+            response = resp;
+            list = callbacks;
+            callbacks = null;
+            notifyAll();
+        }
+        if (list != null) {
+            for (Callback callback : list) {
+                callback.dispatch(resp);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the response of the completed request
+     *
+     * @return The response
+     */
+    private ServiceResponse result() {
+
+        if (response.status == ServiceResponse.STATUS_CANCELLED) {
+            throw new CancellationException("Request " + requestId + " has been cancelled");
+        }
+        return response;
+    }
+
+    /**
+     * The observer together with the executor that calls it
+     */
+    private final static class Callback {
+
+        /** The observer to notify */
+        final ServiceObserver observer;
+
+        /** The executor calling the observer, may be null */
+        final Executor executor;
+
+        Callback(ServiceObserver observer, Executor executor) {
+            this.observer = observer;
+            this.executor = executor;
+        }
+
+        void dispatch(final ServiceResponse resp) {
+
+            if (executor == null) {
+                observer.onServiceRequestCompleted(resp);
+                return;
+            }
+            executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        observer.onServiceRequestCompleted(resp);
+                    }
+                });
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * This file is part of Siebe Projects samples.
+ *
+ * Siebe Projects samples is free software: you can redistribute it and/or modify
+ * it under the terms of the Lesser GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Siebe Projects samples is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Lesser GNU General Public License for more details.
+ *
+ * You should have received a copy of the Lesser GNU General Public License
+ * along with Siebe Projects samples.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.siebeprojects.samples.controller.service;
+
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * The engine executing the requests with the handlers of the HandlerRegistry. 
+ * The engine does not depend on how a request has been received or how its 
+ * response is delivered, it is used by the SampleService for requests received 
+ * from another process and by the ServiceController for requests executed 
+ * directly in the calling process. The reverse handlers are defined here.
+ */
+final class ServiceHandler {
+
+    private final static String TAG     = "sample_ServiceHandler";
+
+    /** The largest reverse buffer in characters that is kept by a thread */
+    private final static int MAX_BUFFER_CHARS = 32 * 1024;
+
+    /** The reverse buffer of every thread, reused for all texts that fit */
+    private final static ThreadLocal<char[]> buffers = new ThreadLocal<char[]>();
+
+    /** The handler reversing a text */
+    final static RequestHandler REVERSE_TEXT = new RequestHandler(
+        RequestHandler.FLAG_CACHEABLE | RequestHandler.FLAG_PARALLEL, RequestHandler.COST_LOW) {
+            @Override
+            public void handle(ServiceRequest request, ServiceResponse response, ChunkSink sink) {
+                String text = PayloadStore.getString(request.data, ServiceRequest.KEY_DATA);
+                response.data.putString(ServiceResponse.KEY_DATA, reverse(text));
+            }
+        };
+
+    /** The handler reversing the texts of a batch */
+    final static RequestHandler REVERSE_TEXT_BATCH = new RequestHandler(
+        RequestHandler.FLAG_CACHEABLE | RequestHandler.FLAG_PARALLEL, RequestHandler.COST_NORMAL) {
+            @Override
+            public void handle(ServiceRequest request, ServiceResponse response, ChunkSink sink) {
+                handleReverseBatch(request, response);
+            }
+        };
+
+    /** The handler streaming the reversed text in chunks, its chunks cannot be cached */
+    final static RequestHandler REVERSE_TEXT_STREAM = new RequestHandler(
+        RequestHandler.FLAG_PARALLEL, RequestHandler.COST_NORMAL) {
+            @Override
+            public void handle(ServiceRequest request, ServiceResponse response, ChunkSink sink) {
+                handleReverseStream(request, response, sink);
+            }
+        };
+
+    /**
+     * The ServiceHandler cannot be instantiated
+     */
+    private ServiceHandler() {
+    }
+
+    /**
+     * Handle the request with the handler of its type and create its final response, 
+     * the request is not changed. A request without handler fails with STATUS_UNSUPPORTED.
+     *
+     * @param request   The request to handle
+     * @param sink      The sink receiving the chunks of a streaming request
+     *
+     * @return The final response of the request
+     */
+    static ServiceResponse handle(ServiceRequest request, RequestHandler.ChunkSink sink) {
+
+        ServiceResponse response = new ServiceResponse(request.id);
+        response.received = request.received;
+        response.started = System.nanoTime();
+
+        RequestHandler handler = HandlerRegistry.get(request.type);
+        if (handler == null) {
+            Log.w(TAG, "No handler for " + request);
+            response.status = ServiceResponse.STATUS_UNSUPPORTED;
+            response.data.putString(ServiceResponse.KEY_ERROR, "Unsupported request type " + request.type);
+        } else if (request.deadline != 0 && SystemClock.elapsedRealtime() > request.deadline) {
+            // the result would arrive too late, drop the request
+            response.status = ServiceResponse.STATUS_EXPIRED;
+        } else {
+            try {
+                handler.handle(request, response, sink);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Failed to handle " + request, e);
+                response.setError(e.toString());
+            }
+        }
+        response.completed = System.nanoTime();
+        return response;
+    }
+
+    /**
+     * Reverse the text, the reverse handlers use this method for every text
+     *
+     * @param text The text to reverse
+     *
+     * @return The reversed text
+     */
+    static String reverse(String text) {
+        return reverse(text, 0, text.length());
+    }
+
+    /**
+     * Reverse the part of the text, surrogate pairs are kept in order. The text
+     * is reversed in the buffer of the calling thread, only the result is allocated.
+     *
+     * @param text  The text to reverse
+     * @param start The index of the first character
+     * @param end   The index after the last character
+     *
+     * @return The reversed part of the text
+     */
+    static String reverse(String text, int start, int end) {
+
+        int length = end - start;
+        char[] chars = buffers.get();
+        if (chars == null || chars.length < length) {
+            chars = new char[length];
+            if (length <= MAX_BUFFER_CHARS) {
+                buffers.set(chars);
+            }
+        }
+        text.getChars(start, end, chars, 0);
+
+        for (int i = 0, j = length - 1; i < j; i++, j--) {
+            char c = chars[i];
+            chars[i] = chars[j];
+            chars[j] = c;
+        }
+        // a reversed surrogate pair has its low surrogate first
+        for (int i = 0; i < length - 1; i++) {
+            if (Character.isLowSurrogate(chars[i]) && Character.isHighSurrogate(chars[i + 1])) {
+                char c = chars[i];
+                chars[i] = chars[i + 1];
+                chars[++i] = c;
+            }
+        }
+        return new String(chars, 0, length);
+    }
+
+    /**
+     * Reverse all texts of the batch request in a single pass. The results
+     * and errors are stored in lists with the same order as the texts,
+     * an item that failed has a null result and a non-null error.
+     *
+     * @param request   The batch request
+     * @param response  The response to store the results in
+     */
+    private static void handleReverseBatch(ServiceRequest request, ServiceResponse response) {
+
+        ArrayList<String> texts = request.data.getStringArrayList(ServiceRequest.KEY_DATA);
+        if (texts == null) {
+            response.setError("Batch request contains no texts");
+            return;
+        }
+        int size = texts.size();
+        ArrayList<String> results = new ArrayList<String>(size);
+        ArrayList<String> errors  = new ArrayList<String>(size);
+
+        for (int i = 0; i < size; i++) {
+            String text = texts.get(i);
+            if (TextUtils.isEmpty(text)) {
+                results.add(null);
+                errors.add("Text cannot be null or empty");
+            } else {
+                results.add(reverse(text));
+                errors.add(null);
+            }
+        }
+        response.data.putStringArrayList(ServiceResponse.KEY_DATA, results);
+        response.data.putStringArrayList(ServiceResponse.KEY_ERRORS, errors);
+    }
+
+    /**
+     * Reverse the text of the streaming request and send the result in chunks,
+     * starting at the end of the text. A chunk never splits a surrogate pair.
+     * The final response only marks the completion and holds the number of chunks
+     * as its sequence number.
+     *
+     * @param request   The streaming request
+     * @param response  The final response
+     * @param sink      The sink receiving the chunks
+     */
+    private static void handleReverseStream(ServiceRequest request, ServiceResponse response, RequestHandler.ChunkSink sink) {
+
+        String text = PayloadStore.getString(request.data, ServiceRequest.KEY_DATA);
+        int chunkSize = Math.max(1, request.data.getInt(ServiceRequest.KEY_CHUNK_SIZE));
+        int sequence = 0;
+        int end = text.length();
+
+        while (end > 0) {
+            int start = Math.max(0, end - chunkSize);
+            if (start > 0 && Character.isLowSurrogate(text.charAt(start))
+                && Character.isHighSurrogate(text.charAt(start - 1))) {
+                start--;
+            }
+            ServiceResponse chunk = new ServiceResponse(request.id);
+            chunk.sequence = sequence++;
+            chunk.complete = false;
+            chunk.data.putString(ServiceResponse.KEY_DATA, reverse(text, start, end));
+            sink.send(request, chunk);
+            end = start;
+        }
+        response.sequence = sequence;
+    }
+}
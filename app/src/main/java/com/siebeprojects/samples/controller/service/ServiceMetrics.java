@@ -0,0 +1,645 @@
+/*
+ * This file is part of Siebe Projects samples.
+ *
+ * Siebe Projects samples is free software: you can redistribute it and/or modify
+ * it under the terms of the Lesser GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Siebe Projects samples is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Lesser GNU General Public License for more details.
+ *
+ * You should have received a copy of the Lesser GNU General Public License
+ * along with Siebe Projects samples.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.siebeprojects.samples.controller.service;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * The latency and throughput metrics of requests. Every request is timestamped
+ * with System.nanoTime when it is submitted, send, received by the service,
+ * started, completed and received back on the callback thread. The callback
+ * stage ends before the observers are called, the time of calling them is not
+ * included. The time spent in every stage is recorded per request type in a
+ * histogram with logarithmic buckets, keeping the recording cost constant and
+ * the percentiles within 25% of the real value.
+ * The sizes of the parcelled bundles are sampled, only one in every
+ * PARCEL_SAMPLE_RATE bundles is parcelled to measure its size.
+ */
+public final class ServiceMetrics {
+
+    /** The stages of a request */
+    public final static int STAGE_TRANSPORT  = 0;
+    public final static int STAGE_QUEUE      = 1;
+    public final static int STAGE_EXECUTE    = 2;
+    public final static int STAGE_CALLBACK   = 3;
+    public final static int STAGE_TOTAL      = 4;
+
+    /** The number of stages */
+    private final static int STAGES = 5;
+
+    /** The names of the stages used when dumping */
+    private final static String[] STAGE_NAMES = { "transport", "queue", "execute", "callback", "total" };
+
+    /** The number of statuses counted */
+    private final static int STATUSES = ServiceResponse.STATUS_UNSUPPORTED + 1;
+
+    /** The bundles are parcelled once in every PARCEL_SAMPLE_RATE times to measure their size */
+    private final static int PARCEL_SAMPLE_RATE = 16;
+
+    /** The name of these metrics */
+    private final String name;
+
+    /** The histograms of every request type, one per stage */
+    private final SparseArray<Histogram[]> histograms;
+
+    /** The number of completed requests per status */
+    private final long[] statuses;
+
+    /** The elapsed realtime the metrics were started */
+    private long started;
+
+    /** The current and the maximum number of pending requests */
+    private int queueDepth;
+    private int maxQueueDepth;
+
+    /** The dispatch latencies of requests received by a cold and a warm service */
+    private Histogram coldDispatch;
+    private Histogram warmDispatch;
+
+    /** The number of created and destroyed services and the lifetime of the last service */
+    private long serviceCreated;
+    private long serviceDestroyed;
+    private long lastLifetime;
+
+    /** The sampled parcel sizes */
+    private int parcelCounter;
+    private long parcelSamples;
+    private long parcelBytes;
+    private int parcelMax;
+
+    /**
+     * Construct new empty ServiceMetrics
+     *
+     * @param name The name of these metrics
+     */
+    ServiceMetrics(String name) {
+        this.name       = name;
+        this.histograms = new SparseArray<Histogram[]>();
+        this.statuses   = new long[STATUSES];
+        this.started    = SystemClock.elapsedRealtime();
+        this.coldDispatch = new Histogram();
+        this.warmDispatch = new Histogram();
+    }
+
+    /**
+     * Get the name of these metrics
+     *
+     * @return The name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the request types of which requests have been recorded
+     *
+     * @return The request types
+     */
+    public synchronized int[] getTypes() {
+
+        int[] types = new int[histograms.size()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = histograms.keyAt(i);
+        }
+        return types;
+    }
+
+    /**
+     * Get the number of requests of the type recorded for the stage
+     *
+     * @param type  The request type
+     * @param stage The stage
+     *
+     * @return The number of recorded requests
+     */
+    public synchronized long getCount(int type, int stage) {
+        Histogram histogram = getHistogram(type, stage);
+        return histogram != null ? histogram.count : 0;
+    }
+
+    /**
+     * Get the time in microseconds below which the given percentage of the
+     * requests of the type completed the stage
+     *
+     * @param type      The request type
+     * @param stage     The stage
+     * @param percent   The percentile, between 1 and 100
+     *
+     * @return The time in microseconds, 0 if nothing has been recorded
+     */
+    public synchronized long getPercentile(int type, int stage, int percent) {
+
+        if (percent < 1 || percent > 100) {
+            throw new IllegalArgumentException("Percentile must be between 1 and 100");
+        }
+        Histogram histogram = getHistogram(type, stage);
+        return histogram != null ? histogram.percentile(percent) : 0;
+    }
+
+    /**
+     * Get the longest time in microseconds a request of the type spent in the stage
+     *
+     * @param type  The request type
+     * @param stage The stage
+     *
+     * @return The time in microseconds, 0 if nothing has been recorded
+     */
+    public synchronized long getMax(int type, int stage) {
+        Histogram histogram = getHistogram(type, stage);
+        return histogram != null ? histogram.max : 0;
+    }
+
+    /**
+     * Get the number of completed requests
+     *
+     * @return The number of completed requests
+     */
+    public synchronized long getCompletedCount() {
+
+        long count = 0;
+        for (long value : statuses) {
+            count += value;
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of completed requests with the given status
+     *
+     * @param status The status of the response
+     *
+     * @return The number of requests
+     */
+    public synchronized long getStatusCount(int status) {
+        return status >= 0 && status < STATUSES ? statuses[status] : 0;
+    }
+
+    /**
+     * Get the number of requests that did not complete successfully
+     *
+     * @return The number of failed requests
+     */
+    public synchronized long getErrorCount() {
+        return getCompletedCount() - statuses[ServiceResponse.STATUS_OK];
+    }
+
+    /**
+     * Get the average number of completed requests per second
+     *
+     * @return The throughput in requests per second
+     */
+    public synchronized double getThroughput() {
+        long elapsed = Math.max(1, SystemClock.elapsedRealtime() - started);
+        return getCompletedCount() * 1000d / elapsed;
+    }
+
+    /**
+     * Get the number of pending requests when the last request was submitted
+     *
+     * @return The queue depth
+     */
+    public synchronized int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * Get the maximum number of pending requests
+     *
+     * @return The maximum queue depth
+     */
+    public synchronized int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    /**
+     * Get the number of requests received by a cold or a warm service. A service 
+     * is cold until it receives its first request, unless it has been warmed up.
+     *
+     * @param cold true for the requests received by a cold service
+     *
+     * @return The number of requests
+     */
+    public synchronized long getDispatchCount(boolean cold) {
+        return (cold ? coldDispatch : warmDispatch).count;
+    }
+
+    /**
+     * Get the time in microseconds below which the given percentage of the requests 
+     * received by a cold or a warm service were dispatched, i.e. the time between
+     * sending a request and its arrival in the service
+     *
+     * @param cold      true for the requests received by a cold service
+     * @param percent   The percentile, between 1 and 100
+     *
+     * @return The time in microseconds, 0 if nothing has been recorded
+     */
+    public synchronized long getDispatchPercentile(boolean cold, int percent) {
+
+        if (percent < 1 || percent > 100) {
+            throw new IllegalArgumentException("Percentile must be between 1 and 100");
+        }
+        return (cold ? coldDispatch : warmDispatch).percentile(percent);
+    }
+
+    /**
+     * Get the number of services created in this process
+     *
+     * @return The number of created services
+     */
+    public synchronized long getServiceCreatedCount() {
+        return serviceCreated;
+    }
+
+    /**
+     * Get the number of services destroyed in this process
+     *
+     * @return The number of destroyed services
+     */
+    public synchronized long getServiceDestroyedCount() {
+        return serviceDestroyed;
+    }
+
+    /**
+     * Get the time in milliseconds between the creation and destruction of the last destroyed service
+     *
+     * @return The lifetime in milliseconds, 0 if no service has been destroyed
+     */
+    public synchronized long getLastServiceLifetime() {
+        return lastLifetime;
+    }
+
+    /**
+     * Get the average size in bytes of the sampled parcelled bundles
+     *
+     * @return The average size in bytes, 0 if none has been sampled
+     */
+    public synchronized long getAverageParcelSize() {
+        return parcelSamples > 0 ? parcelBytes / parcelSamples : 0;
+    }
+
+    /**
+     * Get the size in bytes of the largest sampled parcelled bundle
+     *
+     * @return The maximum size in bytes
+     */
+    public synchronized int getMaxParcelSize() {
+        return parcelMax;
+    }
+
+    /**
+     * Dump these metrics in a human readable form
+     *
+     * @param writer The writer to dump to
+     */
+    public synchronized void dump(PrintWriter writer) {
+
+        writer.println(name + " metrics:");
+        writer.println("  completed: " + getCompletedCount() + String.format(" (%.1f/s)", getThroughput()));
+        writer.print("  statuses:");
+        for (int i = 0; i < STATUSES; i++) {
+            writer.print(" " + i + "=" + statuses[i]);
+        }
+        writer.println();
+        writer.println("  queue depth: " + queueDepth + ", max " + maxQueueDepth);
+        if (serviceCreated > 0) {
+            writer.println("  service: created " + serviceCreated + ", destroyed " + serviceDestroyed + ", last lifetime " + lastLifetime + " ms");
+        }
+        dumpDispatch(writer, "cold", coldDispatch);
+        dumpDispatch(writer, "warm", warmDispatch);
+        writer.println("  parcel size: samples " + parcelSamples + ", avg " + getAverageParcelSize() + " bytes, max " + parcelMax + " bytes");
+
+        for (int i = 0; i < histograms.size(); i++) {
+            writer.println("  type 0x" + Integer.toHexString(histograms.keyAt(i)) + " (us):");
+            Histogram[] stages = histograms.valueAt(i);
+            for (int stage = 0; stage < STAGES; stage++) {
+                Histogram histogram = stages[stage];
+                if (histogram.count == 0) {
+                    continue;
+                }
+                writer.println(String.format("    %-9s count %d, p50 %d, p99 %d, max %d", STAGE_NAMES[stage], histogram.count,
+                                             histogram.percentile(50), histogram.percentile(99), histogram.max));
+            }
+        }
+    }
+
+    /**
+     * Dump the dispatch latencies if any have been recorded
+     *
+     * @param writer    The writer to dump to
+     * @param name      The name of the latencies
+     * @param histogram The histogram of the latencies
+     */
+    private static void dumpDispatch(PrintWriter writer, String name, Histogram histogram) {
+
+        if (histogram.count > 0) {
+            writer.println(String.format("  %s dispatch (us): count %d, p50 %d, p99 %d, max %d", name, histogram.count,
+                                         histogram.percentile(50), histogram.percentile(99), histogram.max));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        StringWriter out = new StringWriter();
+        PrintWriter writer = new PrintWriter(out);
+        dump(writer);
+        writer.flush();
+        return out.toString();
+    }
+
+    /**
+     * Create a copy of these metrics that is not updated anymore
+     *
+     * @return The snapshot
+     */
+    synchronized ServiceMetrics snapshot() {
+
+        ServiceMetrics copy = new ServiceMetrics(name);
+        for (int i = 0; i < histograms.size(); i++) {
+            Histogram[] stages = histograms.valueAt(i);
+            Histogram[] stagesCopy = new Histogram[STAGES];
+            for (int stage = 0; stage < STAGES; stage++) {
+                stagesCopy[stage] = stages[stage].copy();
+            }
+            copy.histograms.put(histograms.keyAt(i), stagesCopy);
+        }
+        System.arraycopy(statuses, 0, copy.statuses, 0, STATUSES);
+        copy.coldDispatch  = coldDispatch.copy();
+        copy.warmDispatch  = warmDispatch.copy();
+        copy.serviceCreated   = serviceCreated;
+        copy.serviceDestroyed = serviceDestroyed;
+        copy.lastLifetime     = lastLifetime;
+        copy.started       = started;
+        copy.queueDepth    = queueDepth;
+        copy.maxQueueDepth = maxQueueDepth;
+        copy.parcelCounter = parcelCounter;
+        copy.parcelSamples = parcelSamples;
+        copy.parcelBytes   = parcelBytes;
+        copy.parcelMax     = parcelMax;
+        return copy;
+    }
+
+    /**
+     * Clear all recorded values and restart the throughput measurement
+     */
+    synchronized void reset() {
+        histograms.clear();
+        for (int i = 0; i < STATUSES; i++) {
+            statuses[i] = 0;
+        }
+        coldDispatch  = new Histogram();
+        warmDispatch  = new Histogram();
+        started       = SystemClock.elapsedRealtime();
+        maxQueueDepth = queueDepth;
+        parcelCounter = 0;
+        parcelSamples = 0;
+        parcelBytes   = 0;
+        parcelMax     = 0;
+    }
+
+    /**
+     * Record the stages of the completed request. A stage is skipped when one
+     * of its timestamps has not been set, e.g. the stages of a cached response
+     * or the callback stage recorded by the service.
+     *
+     * @param request   The completed request
+     * @param response  The final response of the request
+     * @param callback  The System.nanoTime the response reached the callback thread, 0 if unknown
+     */
+    synchronized void recordResponse(ServiceRequest request, ServiceResponse response, long callback) {
+
+        Histogram[] stages = histograms.get(request.type);
+        if (stages == null) {
+            stages = new Histogram[STAGES];
+            for (int stage = 0; stage < STAGES; stage++) {
+                stages[stage] = new Histogram();
+            }
+            histograms.put(request.type, stages);
+        }
+        record(stages[STAGE_TRANSPORT], request.sent, response.received);
+        record(stages[STAGE_QUEUE], response.received, response.started);
+        record(stages[STAGE_EXECUTE], response.started, response.completed);
+        record(stages[STAGE_CALLBACK], response.completed, callback);
+        record(stages[STAGE_TOTAL], request.submitted, callback);
+
+        if (response.status >= 0 && response.status < STATUSES) {
+            statuses[response.status]++;
+        }
+    }
+
+    /**
+     * Record the time between sending the request and its arrival in the service
+     *
+     * @param request   The received request
+     * @param cold      Was the request received by a cold service
+     */
+    synchronized void recordDispatch(ServiceRequest request, boolean cold) {
+        record(cold ? coldDispatch : warmDispatch, request.sent, request.received);
+    }
+
+    /**
+     * Record the creation or destruction of a service
+     *
+     * @param created   true when the service has been created, false when destroyed
+     * @param lifetime  The lifetime in milliseconds of the destroyed service
+     */
+    synchronized void recordService(boolean created, long lifetime) {
+
+        if (created) {
+            serviceCreated++;
+        } else {
+            serviceDestroyed++;
+            lastLifetime = lifetime;
+        }
+    }
+
+    /**
+     * Record the number of pending requests
+     *
+     * @param depth The number of pending requests
+     */
+    synchronized void recordQueueDepth(int depth) {
+        queueDepth = depth;
+        maxQueueDepth = Math.max(maxQueueDepth, depth);
+    }
+
+    /**
+     * Record the parcelled size of the bundle if it is sampled
+     *
+     * @param data The bundle that is send
+     */
+    void sampleParcelSize(Bundle data) {
+
+        synchronized (this) {
+            if (parcelCounter++ % PARCEL_SAMPLE_RATE != 0) {
+                return;
+            }
+        }
+        Parcel parcel = Parcel.obtain();
+        int size;
+        try {
+            WireFormat.writeData(parcel, data);
+            size = parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+        synchronized (this) {
+            parcelSamples++;
+            parcelBytes += size;
+            parcelMax = Math.max(parcelMax, size);
+        }
+    }
+
+    /**
+     * Get the histogram of the stage of the request type
+     *
+     * @param type  The request type
+     * @param stage The stage
+     *
+     * @return The histogram or null if the type has not been recorded
+     */
+    private Histogram getHistogram(int type, int stage) {
+
+        if (stage < 0 || stage >= STAGES) {
+            throw new IllegalArgumentException("Unknown stage: " + stage);
+        }
+        Histogram[] stages = histograms.get(type);
+        return stages != null ? stages[stage] : null;
+    }
+
+    /**
+     * Record the time between the two timestamps in the histogram
+     *
+     * @param histogram The histogram
+     * @param start     The System.nanoTime the stage started, 0 if unknown
+     * @param end       The System.nanoTime the stage ended, 0 if unknown
+     */
+    private static void record(Histogram histogram, long start, long end) {
+
+        if (start != 0 && end != 0 && end >= start) {
+            histogram.add((end - start) / 1000);
+        }
+    }
+
+    /**
+     * The histogram of durations in microseconds. Every power of two is divided
+     * in SUB_BUCKETS linear buckets, durations below SUB_BUCKETS have their own bucket.
+     */
+    private final static class Histogram {
+
+        /** The number of linear buckets per power of two, as a shift */
+        private final static int SUB_SHIFT   = 2;
+        private final static int SUB_BUCKETS = 1 << SUB_SHIFT;
+
+        /** The number of buckets, covers durations up to 2^40 microseconds */
+        private final static int BUCKETS     = 40 * SUB_BUCKETS;
+
+        /** The number of durations per bucket */
+        private final long[] buckets = new long[BUCKETS];
+
+        /** The number of durations and the longest duration */
+        private long count;
+        private long max;
+
+        /**
+         * Add the duration to this histogram
+         *
+         * @param micros The duration in microseconds
+         */
+        void add(long micros) {
+            buckets[index(micros)]++;
+            count++;
+            max = Math.max(max, micros);
+        }
+
+        /**
+         * Get the duration below which the given percentage of the durations are
+         *
+         * @param percent The percentile
+         *
+         * @return The upper bound of the bucket holding the percentile, capped at the maximum
+         */
+        long percentile(int percent) {
+
+            long rank = (count * percent + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(max, upperBound(i));
+                }
+            }
+            return max;
+        }
+
+        /**
+         * Create a copy of this histogram
+         *
+         * @return The copy
+         */
+        Histogram copy() {
+            Histogram histogram = new Histogram();
+            System.arraycopy(buckets, 0, histogram.buckets, 0, BUCKETS);
+            histogram.count = count;
+            histogram.max   = max;
+            return histogram;
+        }
+
+        /**
+         * Get the bucket of the duration
+         *
+         * @param micros The duration in microseconds
+         *
+         * @return The index of the bucket
+         */
+        private static int index(long micros) {
+
+            if (micros < SUB_BUCKETS) {
+                return (int)Math.max(0, micros);
+            }
+            int msb = 63 - Long.numberOfLeadingZeros(micros);
+            int sub = (int)(micros >>> (msb - SUB_SHIFT)) - SUB_BUCKETS;
+            return Math.min(BUCKETS - 1, (msb - SUB_SHIFT + 1) * SUB_BUCKETS + sub);
+        }
+
+        /**
+         * Get the largest duration of the bucket
+         *
+         * @param index The index of the bucket
+         *
+         * @return The duration in microseconds
+         */
+        private static long upperBound(int index) {
+
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int shift = index / SUB_BUCKETS - 1;
+            int sub = index % SUB_BUCKETS;
+            return ((long)(SUB_BUCKETS + sub + 1) << shift) - 1;
+        }
+    }
+}
@@ -17,9 +17,12 @@
 
 package com.siebeprojects.samples.controller.service;
 
+import java.util.List;
+
 /**
  * The service request observer, this observer will be notified
- * when a request has been processed.
+ * when a request has been processed. The observer is called on the main
+ * thread unless it has been added with another executor.
  */
 public class ServiceObserver {
 
@@ -32,4 +35,28 @@ public class ServiceObserver {
      */    
     public void onServiceRequestCompleted(ServiceResponse response) {
     }
+
+    /** 
+     * This method will be called on the main thread with the responses of the 
+     * completed requests when the ServiceController delivers in batches. The 
+     * default implementation calls onServiceRequestCompleted for every response,
+     * override it to handle all responses of a batch at once.
+     * 
+     * @param responses The responses in order of completion. 
+     */    
+    public void onServiceRequestsCompleted(List<ServiceResponse> responses) {
+        for (int i = 0, size = responses.size(); i < size; i++) {
+            onServiceRequestCompleted(responses.get(i));
+        }
+    }
+
+    /** 
+     * This method will be called when the service has produced a chunk of 
+     * a streaming request. Chunks are delivered in the order of their sequence
+     * number, the request stays pending until onServiceRequestCompleted is called.
+     * 
+     * @param response The response containing the data of the chunk. 
+     */    
+    public void onServiceRequestChunk(ServiceResponse response) {
+    }
 }
@@ -0,0 +1,52 @@
+/*
+ * This file is part of Siebe Projects samples.
+ *
+ * Siebe Projects samples is free software: you can redistribute it and/or modify
+ * it under the terms of the Lesser GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Siebe Projects samples is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Lesser GNU General Public License for more details.
+ *
+ * You should have received a copy of the Lesser GNU General Public License
+ * along with Siebe Projects samples.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.siebeprojects.samples.controller.service;
+
+/**
+ * Thrown by the ServiceController when a request is not admitted because
+ * the limit of pending requests has been reached.
+ */
+public class ServiceRejectedException extends RuntimeException {
+
+    private final static long serialVersionUID = 1L;
+
+    /** The time in milliseconds after which the request may be send again */
+    private final long retryAfter;
+
+    /**
+     * Construct a new ServiceRejectedException
+     *
+     * @param message       The detail message
+     * @param retryAfter    The time in milliseconds after which the request may be
+     *                      send again, 0 if unknown
+     */
+    public ServiceRejectedException(String message, long retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Get the estimated time after which a pending request will have been
+     * completed and the request may be send again.
+     *
+     * @return The time in milliseconds, 0 if unknown
+     */
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -18,10 +18,18 @@
 package com.siebeprojects.samples.controller.service;
 
 import android.os.Bundle;
+import android.os.Messenger;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.os.ResultReceiver;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Class for sending a request with data to the SampleService
  */
@@ -29,12 +37,28 @@ public class ServiceRequest implements Parcelable {
 
     /** The app specific requests*/
     public final static int REQ_REVERSE_TEXT = 0x01;
+    public final static int REQ_REVERSE_TEXT_BATCH = 0x02;
+    public final static int REQ_REVERSE_TEXT_STREAM = 0x03;
 
     /** The key values for storing info in the ServiceRequest */
     public final static String KEY_DATA     = "data";
+    public final static String KEY_CHUNK_SIZE = "chunksize";
+
+    /** The priority classes, requests with a higher priority are executed first */
+    public final static int PRIORITY_LOW    = 0;
+    public final static int PRIORITY_NORMAL = 1;
+    public final static int PRIORITY_HIGH   = 2;
 
     /** the sequence id for generating unique request ids */
-    private static int nextId;
+    private final static AtomicInteger nextId = new AtomicInteger();
+
+    /** the maximum number of recycled requests kept in the pool */
+    private final static int MAX_POOL_SIZE = 16;
+
+    /** the pool of recycled requests, linked through their next field */
+    private final static Object poolLock = new Object();
+    private static ServiceRequest pool;
+    private static int poolSize;
 
     /** The type of request */
     public int type;
@@ -48,6 +72,69 @@ public class ServiceRequest implements Parcelable {
     /** The id of this request */
     public int id;
 
+    /** The priority class of this request */
+    public int priority;
+
+    /** 
+     * The elapsed realtime in milliseconds after which the service drops this 
+     * request instead of executing it, 0 if this request has no deadline.
+     * Requests of the same priority are executed in order of their deadline.
+     */
+    public long deadline;
+
+    /** 
+     * The key identifying the type and payload of this request, used by the 
+     * ServiceController to detect identical requests. The key is a hash of 
+     * the payload, requests with equal keys are compared with sameData. 
+     * This key is not parcelled.
+     */
+    String key;
+
+    /** 
+     * The transport used by the ServiceController to send this request, 
+     * this value is not parcelled.
+     */
+    int transport;
+
+    /** 
+     * The index of the shard this request has been send to, -1 when the 
+     * request has not been send to a shard. This value is not parcelled.
+     */
+    int shard = -1;
+
+    /** 
+     * The Messenger the service sends the response to when this request was 
+     * received through a bound connection, this value is not parcelled.
+     */
+    Messenger replyTo;
+
+    /** 
+     * The elapsed realtime after which the ServiceController expires this 
+     * request, 0 if the request never expires. This value is not parcelled.
+     */
+    long expires;
+
+    /** 
+     * The System.nanoTime the ServiceController accepted this request, 
+     * this value is not parcelled.
+     */
+    long submitted;
+
+    /** The System.nanoTime the ServiceController send this request to the service */
+    long sent;
+
+    /** 
+     * The System.nanoTime the service received this request, 
+     * this value is not parcelled.
+     */
+    long received;
+
+    /** Is this request obtained from the pool, only these requests are recycled */
+    private boolean pooled;
+
+    /** The next request in the pool */
+    private ServiceRequest next;
+
     /** 
      * Create a new ServiceRequest, provide the type of the request.
      * The type will be used by the Service to determine what action should be 
@@ -59,6 +146,70 @@ public class ServiceRequest implements Parcelable {
         this.type = type;
         this.id   = getNextId();
         this.data = new Bundle();
+        this.priority = PRIORITY_NORMAL;
+    }
+
+    /** 
+     * Obtain a request from the pool or create a new request when the pool is 
+     * empty. The request is returned to the pool by recycle.
+     *
+     * @param type The type of the service request 
+     * 
+     * @return The request with a new unique id
+     */
+    static ServiceRequest obtain(int type) {
+
+        ServiceRequest request;
+        synchronized (poolLock) {
+            request = pool;
+            if (request != null) {
+                pool = request.next;
+                request.next = null;
+                poolSize--;
+            }
+        }
+        if (request == null) {
+            request = new ServiceRequest(type);
+        } else {
+            request.type = type;
+            request.id   = getNextId();
+        }
+        request.pooled = true;
+        return request;
+    }
+
+    /** 
+     * Return this request to the pool when it has been obtained from the pool.
+     * The request may not be used anymore after it has been recycled.
+     */
+    void recycle() {
+
+        if (!pooled) {
+            return;
+        }
+        type      = 0;
+        id        = 0;
+        data.clear();
+        receiver  = null;
+        priority  = PRIORITY_NORMAL;
+        deadline  = 0;
+        key       = null;
+        transport = 0;
+        shard     = -1;
+        replyTo   = null;
+        expires   = 0;
+        submitted = 0;
+        sent      = 0;
+        received  = 0;
+        pooled    = false;
+
+        synchronized (poolLock) {
+            if (poolSize < MAX_POOL_SIZE) {
+                next = pool;
+                pool = this;
+                poolSize++;
+            }
+        }
     }
 
     /**
@@ -79,17 +230,172 @@ public class ServiceRequest implements Parcelable {
         sb.append(id);
         sb.append(",type: ");
         sb.append(Integer.toHexString(type));
+        sb.append(",priority: ");
+        sb.append(priority);
         sb.append("]");
         return sb.toString();
     }
 
+    /**
+     * Check if the response of this request is streamed in chunks. 
+     *
+     * @return true when the service sends chunks before the final response
+     */
+    public boolean isStreaming() {
+        return data.getInt(KEY_CHUNK_SIZE, 0) > 0;
+    }
+
+    /**
+     * Create the key identifying the type and payload of this request. The key 
+     * is the SHA-256 hash of the sorted entries of the data, every value is 
+     * hashed with its length so different payloads never produce the same input.
+     * The payload itself is not copied into the key.
+     *
+     * @return The key or null if the data contains values that cannot be compared
+     */
+    String createKey() {
+
+        String[] names = data.keySet().toArray(new String[0]);
+        Arrays.sort(names);
+
+        KeyDigest digest = new KeyDigest();
+        digest.putInt(type);
+        for (String name : names) {
+            digest.putString(name);
+            Object value = data.get(name);
+
+            if (value instanceof String) {
+                digest.putChar('s');
+                digest.putString((String)value);
+            } else if (value instanceof Integer || value instanceof Long || value instanceof Boolean) {
+                digest.putChar(value.getClass().getSimpleName().charAt(0));
+                digest.putString(value.toString());
+            } else if (value instanceof ArrayList) {
+                digest.putChar('l');
+                digest.putInt(((List<?>)value).size());
+                for (Object item : (List<?>)value) {
+                    if (item != null && !(item instanceof String)) {
+                        return null;
+                    }
+                    digest.putString((String)item);
+                }
+            } else {
+                return null;
+            }
+        }
+        return digest.toHex();
+    }
+
+    /**
+     * Check if the request has the same type and payload as this request, used 
+     * to confirm that requests with equal keys are identical. The values are 
+     * compared with equals, so a shared string is compared by reference.
+     *
+     * @param type  The type of the other request
+     * @param data  The data of the other request
+     *
+     * @return true when the type and all values are equal
+     */
+    boolean sameData(int type, Bundle data) {
+
+        if (this.type != type || this.data.size() != data.size()) {
+            return false;
+        }
+        for (String name : this.data.keySet()) {
+            Object value = this.data.get(name);
+            Object other = data.get(name);
+            if (value == null ? other != null || !data.containsKey(name) : !value.equals(other)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Return the next unique request id.
      *
      * @return  The next request id 
      */
-    private static synchronized int getNextId() {
-        return ++nextId;
+    private static int getNextId() {
+        return nextId.incrementAndGet();
+    }
+
+    /**
+     * Reserve the request ids up to the given id, the next request id will be higher.
+     *
+     * @param maxId The highest id in use
+     */
+    static void reserveIds(int maxId) {
+
+        int current = nextId.get();
+        while (current < maxId && !nextId.compareAndSet(current, maxId)) {
+            current = nextId.get();
+        }
+    }
+
+    /**
+     * The SHA-256 digest of the key, values are fed through a small buffer 
+     * so large payloads are hashed without being copied.
+     */
+    private final static class KeyDigest {
+
+        /** The digits of the hexadecimal key */
+        private final static char[] HEX = "0123456789abcdef".toCharArray();
+
+        /** The digest */
+        private final MessageDigest digest;
+
+        /** The buffer of bytes not yet fed to the digest */
+        private final byte[] buffer = new byte[512];
+        private int pos;
+
+        KeyDigest() {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 not available", e);
+            }
+        }
+
+        void putChar(char c) {
+
+            if (pos + 2 > buffer.length) {
+                digest.update(buffer, 0, pos);
+                pos = 0;
+            }
+            buffer[pos++] = (byte)(c >> 8);
+            buffer[pos++] = (byte)c;
+        }
+
+        void putInt(int value) {
+            putChar((char)(value >>> 16));
+            putChar((char)value);
+        }
+
+        void putString(String value) {
+
+            if (value == null) {
+                putInt(-1);
+                return;
+            }
+            int length = value.length();
+            putInt(length);
+            for (int i = 0; i < length; i++) {
+                putChar(value.charAt(i));
+            }
+        }
+
+        String toHex() {
+
+            digest.update(buffer, 0, pos);
+            byte[] hash = digest.digest();
+            char[] chars = new char[2 * hash.length];
+            for (int i = 0; i < hash.length; i++) {
+                chars[2 * i] = HEX[(hash[i] >> 4) & 0x0f];
+                chars[2 * i + 1] = HEX[hash[i] & 0x0f];
+            }
+            return new String(chars);
+        }
     }
 
     /**
@@ -105,10 +411,19 @@ public class ServiceRequest implements Parcelable {
      * Writes the request to the out buffer.
      */
     public void writeToParcel(Parcel out, int flags) {
-        out.writeValue(receiver);
+        out.writeInt(WireFormat.VERSION);
+        if (receiver != null) {
+            out.writeInt(1);
+            receiver.writeToParcel(out, flags);
+        } else {
+            out.writeInt(0);
+        }
         out.writeInt(id);
         out.writeInt(type);
-        out.writeBundle(data);
+        out.writeInt(priority);
+        out.writeLong(deadline);
+        out.writeLong(sent);
+        WireFormat.writeData(out, data);
     }
 
     /** 
@@ -117,10 +432,14 @@ public class ServiceRequest implements Parcelable {
      * @param in The parcel to read from
      */
      private ServiceRequest(Parcel in) {
-         receiver = (ResultReceiver)in.readValue(ServiceResultReceiver.class.getClassLoader());
-         type     = in.readInt();
+         WireFormat.checkVersion(in.readInt());
+         receiver = in.readInt() != 0 ? ResultReceiver.CREATOR.createFromParcel(in) : null;
          id       = in.readInt();
-         data     = in.readBundle(ServiceRequest.class.getClassLoader());
+         type     = in.readInt();
+         priority = in.readInt();
+         deadline = in.readLong();
+         sent     = in.readLong();
+         data     = WireFormat.readData(in);
      }
 
     /**
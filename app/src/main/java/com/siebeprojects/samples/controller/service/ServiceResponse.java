@@ -32,12 +32,50 @@ public class ServiceResponse implements Parcelable {
     /** The key to obtain result data from the internal bundle */
     public final static String KEY_DATA    = "data";
 
+    /** The key to obtain the error message from the internal bundle */
+    public final static String KEY_ERROR   = "error";
+
+    /** The key to obtain the per item error messages of a batch request */
+    public final static String KEY_ERRORS  = "errors";
+
+    /** The status values of a response */
+    public final static int STATUS_OK      = 0;
+    public final static int STATUS_ERROR   = 1;
+    public final static int STATUS_TIMEOUT = 2;
+    public final static int STATUS_CANCELLED = 3;
+    public final static int STATUS_EXPIRED = 4;
+    public final static int STATUS_SHED = 5;
+    public final static int STATUS_UNSUPPORTED = 6;
+
     /** The id of the request this response belongs to */
     public int requestId;
 
+    /** The status of this response */
+    public int status;
+
+    /** The sequence number of this chunk, the chunks of a request are numbered from 0 */
+    public int sequence;
+
+    /** 
+     * Is this the final response of the request, false when this response
+     * is a chunk of a streaming request 
+     */
+    public boolean complete;
+
     /** The bundle containing result data */
     public Bundle data;
 
+    /** 
+     * The System.nanoTime the service received, started and completed the request,
+     * 0 when the response has not been created by the service
+     */
+    long received;
+    long started;
+    long completed;
+
+    /** Has this response been served from a cache, this value is not parcelled */
+    boolean cached;
+
     /**
      * Create a new ServiceResponse object
      * 
@@ -45,6 +83,7 @@ public class ServiceResponse implements Parcelable {
      */
     public ServiceResponse(int requestId) {
         this.requestId = requestId;
+        this.complete = true;
         data = new Bundle();
     }
 
@@ -60,6 +99,44 @@ public class ServiceResponse implements Parcelable {
         return this.requestId == requestId;
     }
 
+    /** 
+     * Check if the request of this response has been handled successfully.
+     * The items of a batch request may still contain errors, these are stored 
+     * under the KEY_ERRORS key.
+     * 
+     * @return true when the status is STATUS_OK, false otherwise
+     */
+    public boolean isOk() {
+        return status == STATUS_OK;
+    }
+
+    /** 
+     * Mark this response as failed with the given error message
+     * 
+     * @param message The error message
+     */
+    public void setError(String message) {
+        status = STATUS_ERROR;
+        data.putString(KEY_ERROR, message);
+    }
+
+    /** 
+     * Create a copy of this response for another request, the data bundle
+     * is copied but its values are shared.
+     * 
+     * @param requestId The id of the request the copy belongs to 
+     * 
+     * @return The copy of this response 
+     */
+    ServiceResponse copy(int requestId) {
+        ServiceResponse response = new ServiceResponse(requestId);
+        response.status = status;
+        response.sequence = sequence;
+        response.complete = complete;
+        response.data.putAll(data);
+        return response;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -68,6 +145,12 @@ public class ServiceResponse implements Parcelable {
         StringBuilder sb = new StringBuilder();
         sb.append("ServiceResponse[requestId: ");
         sb.append(requestId);
+        sb.append(",status: ");
+        sb.append(status);
+        if (!complete) {
+            sb.append(",sequence: ");
+            sb.append(sequence);
+        }
         sb.append("]");
         return sb.toString();
     }
@@ -85,16 +168,30 @@ public class ServiceResponse implements Parcelable {
      */
     @Override
     public void writeToParcel(Parcel out, int flags) {
+        out.writeInt(WireFormat.VERSION);
         out.writeInt(requestId);
-        out.writeBundle(data);
+        out.writeInt(status);
+        out.writeInt(sequence);
+        out.writeInt(complete ? 1 : 0);
+        out.writeLong(received);
+        out.writeLong(started);
+        out.writeLong(completed);
+        WireFormat.writeData(out, data);
     }
 
     /**
      *  
      */
      private ServiceResponse(Parcel in) {
+         WireFormat.checkVersion(in.readInt());
          requestId = in.readInt();
-         data = in.readBundle(ServiceRequest.class.getClassLoader());
+         status = in.readInt();
+         sequence = in.readInt();
+         complete = in.readInt() != 0;
+         received = in.readLong();
+         started = in.readLong();
+         completed = in.readLong();
+         data = WireFormat.readData(in);
      }
 
     /**
@@ -18,7 +18,6 @@
 package com.siebeprojects.samples.controller.service;
 
 import android.os.Handler;
-import android.os.Looper;
 import android.os.ResultReceiver;
 
 /**
@@ -30,9 +29,11 @@ class ServiceResultReceiver extends ResultReceiver {
     /**
      * Create a new ServiceResultReceiver
      * All callbacks from the service will be executed in 
-     * the main looper thread.
+     * the thread of the handler.
+     *
+     * @param handler The handler of the thread receiving the callbacks
      */
-    ServiceResultReceiver() {
-        super(new Handler(Looper.getMainLooper()));
+    ServiceResultReceiver(Handler handler) {
+        super(handler);
     }
 }
@@ -0,0 +1,142 @@
+/*
+ * This file is part of Siebe Projects samples.
+ *
+ * Siebe Projects samples is free software: you can redistribute it and/or modify
+ * it under the terms of the Lesser GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Siebe Projects samples is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Lesser GNU General Public License for more details.
+ *
+ * You should have received a copy of the Lesser GNU General Public License
+ * along with Siebe Projects samples.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.siebeprojects.samples.controller.service;
+
+import android.os.SystemClock;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The buffer of recently completed responses, keyed by request id. A response
+ * is kept until it is claimed by an observer registering after the completion
+ * of its request, until it expires or until it is the eldest response of a full buffer.
+ */
+final class StickyResponses {
+
+    /** The default limits of the buffer */
+    final static int DEFAULT_MAX_ENTRIES   = 16;
+    final static long DEFAULT_TTL          = 30 * 1000;
+
+    /** The buffered entries in order of completion */
+    private final LinkedHashMap<Integer, Entry> entries;
+
+    /** The maximum number of entries */
+    private int maxEntries;
+
+    /** The time to live of an entry in milliseconds */
+    private long ttl;
+
+    /**
+     * Construct a new StickyResponses with the default limits
+     */
+    StickyResponses() {
+        entries = new LinkedHashMap<Integer, Entry>();
+        maxEntries = DEFAULT_MAX_ENTRIES;
+        ttl = DEFAULT_TTL;
+    }
+
+    /**
+     * Set the limits of this buffer, entries exceeding the new limits are removed.
+     *
+     * @param maxEntries    The maximum number of entries, 0 disables the buffer
+     * @param ttl           The time to live of an entry in milliseconds
+     */
+    synchronized void setLimits(int maxEntries, long ttl) {
+
+        if (maxEntries < 0 || ttl < 0) {
+            throw new IllegalArgumentException("Limits cannot be negative");
+        }
+        this.maxEntries = maxEntries;
+        this.ttl = ttl;
+        trim(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Add the final response of a completed request
+     *
+     * @param response The response to add, must not be changed afterwards
+     */
+    synchronized void put(ServiceResponse response) {
+
+        if (maxEntries == 0 || ttl == 0) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        entries.put(response.requestId, new Entry(response, now + ttl));
+        trim(now);
+    }
+
+    /**
+     * Remove and return the response of the completed request
+     *
+     * @param requestId The id of the request
+     *
+     * @return The response or null if not found or expired
+     */
+    synchronized ServiceResponse claim(int requestId) {
+
+        Entry entry = entries.remove(requestId);
+        if (entry == null || SystemClock.elapsedRealtime() >= entry.expires) {
+            return null;
+        }
+        return entry.response;
+    }
+
+    /**
+     * Remove all entries from this buffer
+     */
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Remove the expired entries and the eldest entries exceeding the maximum,
+     * the entries expire in order of completion.
+     *
+     * @param now The current elapsed realtime
+     */
+    private void trim(long now) {
+
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entries.size() <= maxEntries && now < entry.expires) {
+                break;
+            }
+            iterator.remove();
+        }
+    }
+
+    /**
+     * A buffered response with its expiry time
+     */
+    private final static class Entry {
+
+        /** The buffered response */
+        final ServiceResponse response;
+
+        /** The elapsed realtime this entry expires */
+        final long expires;
+
+        Entry(ServiceResponse response, long expires) {
+            this.response = response;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,514 @@
+/*
+ * This file is part of Siebe Projects samples.
+ *
+ * Siebe Projects samples is free software: you can redistribute it and/or modify
+ * it under the terms of the Lesser GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Siebe Projects samples is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Lesser GNU General Public License for more details.
+ *
+ * You should have received a copy of the Lesser GNU General Public License
+ * along with Siebe Projects samples.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.siebeprojects.samples.controller.service;
+
+import android.os.Bundle;
+import android.os.Parcel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The compact wire format of the data bundles of requests and responses.
+ * Bundles only holding the fields of the known request and response schemas
+ * are encoded in a byte array. Every entry starts with a varint holding its
+ * field number and kind, followed by its value: strings are length prefixed
+ * in UTF-8 or UTF-16, whichever is smaller, integers are zigzag varints and
+ * lists are count prefixed. Bundles holding other keys or values are
+ * parcelled as a Bundle. The parcelled ServiceRequest and ServiceResponse
+ * start with the VERSION of this format, so do the bundles stored on disk.
+ */
+final class WireFormat {
+
+    /** The version of the wire format */
+    final static int VERSION            = 1;
+
+    /** The encodings of a data bundle */
+    private final static int ENCODING_BUNDLE  = 0;
+    private final static int ENCODING_COMPACT = 1;
+
+    /** The kinds of values */
+    private final static int KIND_NULL  = 0;
+    private final static int KIND_UTF8  = 1;
+    private final static int KIND_UTF16 = 2;
+    private final static int KIND_INT   = 3;
+    private final static int KIND_LIST  = 4;
+
+    /** The number of bits of the kind in the header of an entry */
+    private final static int KIND_BITS  = 3;
+
+    /** The keys of the known schemas, the index in this array is the field number */
+    private final static String[] FIELDS = {
+        ServiceRequest.KEY_DATA,
+        ServiceRequest.KEY_CHUNK_SIZE,
+        ServiceResponse.KEY_ERROR,
+        ServiceResponse.KEY_ERRORS,
+        ServiceRequest.KEY_DATA + PayloadStore.SUFFIX_REF
+    };
+
+    /**
+     * The WireFormat cannot be instantiated
+     */
+    private WireFormat() {
+    }
+
+    /**
+     * Check if the parcelled version is supported
+     *
+     * @param version The version read from the parcel
+     */
+    static void checkVersion(int version) {
+
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported wire format version: " + version);
+        }
+    }
+
+    /**
+     * Write the data bundle to the parcel, in the compact format when possible
+     *
+     * @param out   The parcel to write to
+     * @param data  The data bundle
+     */
+    static void writeData(Parcel out, Bundle data) {
+
+        byte[] bytes = encode(data);
+        if (bytes == null) {
+            writeBundle(out, data);
+            return;
+        }
+        out.writeInt(ENCODING_COMPACT);
+        out.writeByteArray(bytes);
+    }
+
+    /**
+     * Write the data bundle to the parcel as a Bundle
+     *
+     * @param out   The parcel to write to
+     * @param data  The data bundle
+     */
+    static void writeBundle(Parcel out, Bundle data) {
+        out.writeInt(ENCODING_BUNDLE);
+        out.writeBundle(data);
+    }
+
+    /**
+     * Read the data bundle from the parcel
+     *
+     * @param in The parcel to read from
+     *
+     * @return The data bundle
+     */
+    static Bundle readData(Parcel in) {
+
+        int encoding = in.readInt();
+        switch (encoding) {
+        case ENCODING_BUNDLE:
+            return in.readBundle(ServiceRequest.class.getClassLoader());
+        case ENCODING_COMPACT:
+            return decode(in.createByteArray());
+        default:
+            throw new IllegalArgumentException("Unknown data encoding: " + encoding);
+        }
+    }
+
+    /**
+     * Encode the data bundle in the compact format
+     *
+     * @param data The data bundle
+     *
+     * @return The encoded bundle or null if it does not fit the known schemas
+     */
+    static byte[] encode(Bundle data) {
+
+        // the size is computed first so the bytes are allocated only once
+        int size = 0;
+        for (String key : data.keySet()) {
+            int field = field(key);
+            if (field < 0) {
+                return null;
+            }
+            int valueSize = sizeOf(data.get(key));
+            if (valueSize < 0) {
+                return null;
+            }
+            size += varintSize(field << KIND_BITS) + valueSize;
+        }
+        Buffer buffer = new Buffer(new byte[size], 0);
+        for (String key : data.keySet()) {
+            buffer.putValue(field(key), data.get(key));
+        }
+        return buffer.bytes;
+    }
+
+    /**
+     * Encode the data bundle for storage, the compact format is preceded by 
+     * the VERSION of this format. A Parcel is never stored, its format may 
+     * change with the platform.
+     *
+     * @param data The data bundle
+     *
+     * @return The encoded bundle or null if it does not fit the known schemas
+     */
+    static byte[] encodeVersioned(Bundle data) {
+
+        byte[] bytes = encode(data);
+        if (bytes == null) {
+            return null;
+        }
+        Buffer buffer = new Buffer(new byte[varintSize(VERSION) + bytes.length], 0);
+        buffer.putVarint(VERSION);
+        System.arraycopy(bytes, 0, buffer.bytes, buffer.pos, bytes.length);
+        return buffer.bytes;
+    }
+
+    /**
+     * Decode the data bundle stored with encodeVersioned
+     *
+     * @param bytes     The bytes holding the encoded bundle
+     * @param offset    The offset of the encoded bundle
+     * @param length    The length of the encoded bundle
+     *
+     * @return The data bundle
+     */
+    static Bundle decodeVersioned(byte[] bytes, int offset, int length) {
+
+        Buffer buffer = new Buffer(bytes, offset);
+        checkVersion(buffer.getVarint());
+        return decode(bytes, buffer.pos, offset + length);
+    }
+
+    /**
+     * Decode the data bundle from the compact format
+     *
+     * @param bytes The encoded bundle
+     *
+     * @return The data bundle
+     */
+    static Bundle decode(byte[] bytes) {
+        return decode(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Decode the data bundle from the compact format
+     *
+     * @param bytes The bytes holding the encoded bundle
+     * @param start The position of the first entry
+     * @param end   The position after the last entry
+     *
+     * @return The data bundle
+     */
+    private static Bundle decode(byte[] bytes, int start, int end) {
+
+        Buffer buffer = new Buffer(bytes, start);
+        Bundle data = new Bundle();
+
+        while (buffer.pos < end) {
+            int header = buffer.getVarint();
+            int field = header >>> KIND_BITS;
+            if (field >= FIELDS.length) {
+                throw new IllegalArgumentException("Unknown field: " + field);
+            }
+            String key = FIELDS[field];
+            switch (header & ((1 << KIND_BITS) - 1)) {
+            case KIND_NULL:
+                data.putString(key, null);
+                break;
+            case KIND_INT:
+                data.putInt(key, buffer.getZigzag());
+                break;
+            case KIND_LIST:
+                int count = buffer.getVarint();
+                ArrayList<String> list = new ArrayList<String>(count);
+                for (int i = 0; i < count; i++) {
+                    list.add(buffer.getString(buffer.getVarint()));
+                }
+                data.putStringArrayList(key, list);
+                break;
+            default:
+                data.putString(key, buffer.getString(header & ((1 << KIND_BITS) - 1)));
+                break;
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Get the field number of the key
+     *
+     * @param key The key in the bundle
+     *
+     * @return The field number or -1 if the key is not part of a known schema
+     */
+    private static int field(String key) {
+
+        for (int i = 0; i < FIELDS.length; i++) {
+            if (FIELDS[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the encoded size of the value, excluding its header
+     *
+     * @param value The value
+     *
+     * @return The size in bytes or -1 if the value cannot be encoded
+     */
+    private static int sizeOf(Object value) {
+
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof String) {
+            return stringSize((String)value);
+        }
+        if (value instanceof Integer) {
+            return varintSize(zigzag((Integer)value));
+        }
+        if (!(value instanceof ArrayList)) {
+            return -1;
+        }
+        List<?> list = (List<?>)value;
+        int size = varintSize(list.size());
+        for (Object item : list) {
+            if (item == null) {
+                size++;
+            } else if (item instanceof String) {
+                size += 1 + stringSize((String)item);
+            } else {
+                return -1;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Get the encoded size of the string, including its length prefix
+     *
+     * @param text The string
+     *
+     * @return The size in bytes
+     */
+    private static int stringSize(String text) {
+
+        int utf8 = utf8Length(text);
+        int utf16 = 2 * text.length();
+        return utf8 <= utf16 ? varintSize(utf8) + utf8 : varintSize(text.length()) + utf16;
+    }
+
+    /**
+     * Get the number of bytes of the string in UTF-8, unpaired surrogates
+     * are encoded as three byte sequences so no character is lost
+     *
+     * @param text The string
+     *
+     * @return The number of bytes
+     */
+    private static int utf8Length(String text) {
+
+        int length = text.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x800) {
+                // a surrogate pair takes four bytes, every other character three
+                bytes += 2;
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    i++;
+                }
+            } else if (c >= 0x80) {
+                bytes++;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Get the number of bytes of the unsigned varint
+     *
+     * @param value The value
+     *
+     * @return The number of bytes
+     */
+    private static int varintSize(int value) {
+
+        int size = 1;
+        while ((value & ~0x7f) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Zigzag encode the value so small negative values have short varints
+     *
+     * @param value The value
+     *
+     * @return The encoded value
+     */
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    /**
+     * The byte array with its read or write position
+     */
+    private final static class Buffer {
+
+        /** The bytes */
+        final byte[] bytes;
+
+        /** The position in the bytes */
+        int pos;
+
+        Buffer(byte[] bytes, int pos) {
+            this.bytes = bytes;
+            this.pos   = pos;
+        }
+
+        void putValue(int field, Object value) {
+
+            if (value == null) {
+                putVarint(field << KIND_BITS | KIND_NULL);
+            } else if (value instanceof String) {
+                putString(field << KIND_BITS, (String)value);
+            } else if (value instanceof Integer) {
+                putVarint(field << KIND_BITS | KIND_INT);
+                putVarint(zigzag((Integer)value));
+            } else {
+                List<?> list = (List<?>)value;
+                putVarint(field << KIND_BITS | KIND_LIST);
+                putVarint(list.size());
+                for (Object item : list) {
+                    if (item == null) {
+                        putVarint(KIND_NULL);
+                    } else {
+                        putString(0, (String)item);
+                    }
+                }
+            }
+        }
+
+        void putVarint(int value) {
+
+            while ((value & ~0x7f) != 0) {
+                bytes[pos++] = (byte)((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            bytes[pos++] = (byte)value;
+        }
+
+        void putString(int header, String text) {
+
+            int length = text.length();
+            int utf8 = utf8Length(text);
+            if (utf8 > 2 * length) {
+                putVarint(header | KIND_UTF16);
+                putVarint(length);
+                for (int i = 0; i < length; i++) {
+                    char c = text.charAt(i);
+                    bytes[pos++] = (byte)(c >> 8);
+                    bytes[pos++] = (byte)c;
+                }
+                return;
+            }
+            putVarint(header | KIND_UTF8);
+            putVarint(utf8);
+            for (int i = 0; i < length; i++) {
+                char c = text.charAt(i);
+                if (c < 0x80) {
+                    bytes[pos++] = (byte)c;
+                } else if (c < 0x800) {
+                    bytes[pos++] = (byte)(0xc0 | (c >> 6));
+                    bytes[pos++] = (byte)(0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, text.charAt(++i));
+                    bytes[pos++] = (byte)(0xf0 | (cp >> 18));
+                    bytes[pos++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+                    bytes[pos++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+                    bytes[pos++] = (byte)(0x80 | (cp & 0x3f));
+                } else {
+                    bytes[pos++] = (byte)(0xe0 | (c >> 12));
+                    bytes[pos++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+                    bytes[pos++] = (byte)(0x80 | (c & 0x3f));
+                }
+            }
+        }
+
+        int getVarint() {
+
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                byte b = bytes[pos++];
+                value |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+
+        int getZigzag() {
+            int value = getVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        String getString(int kind) {
+
+            if (kind == KIND_NULL) {
+                return null;
+            }
+            int length = getVarint();
+            if (kind == KIND_UTF16) {
+                char[] chars = new char[length];
+                for (int i = 0; i < length; i++) {
+                    chars[i] = (char)(((bytes[pos++] & 0xff) << 8) | (bytes[pos++] & 0xff));
+                }
+                return new String(chars);
+            }
+            if (kind != KIND_UTF8) {
+                throw new IllegalArgumentException("Unknown string kind: " + kind);
+            }
+            // a string never has more characters than UTF-8 bytes
+            char[] chars = new char[length];
+            int count = 0;
+            int end = pos + length;
+            while (pos < end) {
+                int b = bytes[pos++] & 0xff;
+                if (b < 0x80) {
+                    chars[count++] = (char)b;
+                } else if (b < 0xe0) {
+                    chars[count++] = (char)(((b & 0x1f) << 6) | (bytes[pos++] & 0x3f));
+                } else if (b < 0xf0) {
+                    chars[count++] = (char)(((b & 0x0f) << 12) | ((bytes[pos++] & 0x3f) << 6) | (bytes[pos++] & 0x3f));
+                } else {
+                    int cp = ((b & 0x07) << 18) | ((bytes[pos++] & 0x3f) << 12)
+                        | ((bytes[pos++] & 0x3f) << 6) | (bytes[pos++] & 0x3f);
+                    cp -= 0x10000;
+                    chars[count++] = (char)(0xd800 | (cp >>> 10));
+                    chars[count++] = (char)(0xdc00 | (cp & 0x3ff));
+                }
+            }
+            return new String(chars, 0, count);
+        }
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * This file is part of Siebe Projects samples.
+ *
+ * Siebe Projects samples is free software: you can redistribute it and/or modify
+ * it under the terms of the Lesser GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Siebe Projects samples is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Lesser GNU General Public License for more details.
+ *
+ * You should have received a copy of the Lesser GNU General Public License
+ * along with Siebe Projects samples.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.siebeprojects.samples.controller.service;
+
+import com.siebeprojects.samples.controller.BuildConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Recovery of the request journal after the process died while writing it
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class RequestJournalTest {
+
+    /** The number of bytes torn off the last record */
+    private final static int TORN_BYTES = 3;
+
+    /** The number of large requests filling the journal beyond its initial capacity */
+    private final static int LARGE_REQUESTS = 64;
+
+    /** The length of the text of a large request */
+    private final static int LARGE_TEXT = 8 * 1024;
+
+    private ScheduledExecutorService executor;
+    private File file;
+    private File crashed;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newSingleThreadScheduledExecutor();
+        file = new File(RuntimeEnvironment.application.getCacheDir(), "test.journal");
+        crashed = new File(RuntimeEnvironment.application.getCacheDir(), "crashed.journal");
+        file.delete();
+        crashed.delete();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        file.delete();
+        crashed.delete();
+    }
+
+    @Test
+    public void recoversFromTornRecord() throws IOException {
+
+        RequestJournal journal = open(file);
+        ServiceRequest first = createRequest("first", ServiceRequest.PRIORITY_HIGH);
+        ServiceRequest second = createRequest("second", ServiceRequest.PRIORITY_NORMAL);
+        ServiceRequest third = createRequest("third", ServiceRequest.PRIORITY_NORMAL);
+        ServiceRequest fourth = createBatchRequest(Arrays.asList("a", null, "c"));
+        journal.recordSubmitted(first);
+        journal.recordSubmitted(second);
+        journal.recordSubmitted(third);
+        journal.recordSubmitted(fourth);
+
+        ServiceResponse response = new ServiceResponse(second.id);
+        response.data.putString(ServiceResponse.KEY_DATA, "dnoces");
+        journal.recordCompleted(response);
+        ServiceResponse failed = new ServiceResponse(third.id);
+        failed.setError("failed");
+        journal.recordCompleted(failed);
+
+        // the process dies while the last record is written
+        ServiceRequest torn = createRequest("torn", ServiceRequest.PRIORITY_LOW);
+        journal.recordSubmitted(torn);
+        writeCrashImage(file, crashed);
+
+        RequestJournal recovered = open(crashed);
+        List<ServiceRequest> pending = recovered.getPendingRequests();
+        assertEquals(2, pending.size());
+        assertRequest(first, pending.get(0));
+        assertRequest(fourth, pending.get(1));
+
+        List<ServiceResponse> completed = recovered.getCompletedResponses();
+        assertEquals(2, completed.size());
+        assertEquals(second.id, completed.get(0).requestId);
+        assertEquals(ServiceResponse.STATUS_OK, completed.get(0).status);
+        assertEquals("dnoces", completed.get(0).data.getString(ServiceResponse.KEY_DATA));
+        assertEquals(third.id, completed.get(1).requestId);
+        assertEquals(ServiceResponse.STATUS_ERROR, completed.get(1).status);
+        assertEquals("failed", completed.get(1).data.getString(ServiceResponse.KEY_ERROR));
+
+        // the id of the torn request is never used again
+        assertTrue(RequestJournal.readMaxId(crashed) >= torn.id);
+        assertTrue(recovered.getMaxId() >= torn.id);
+        recovered.close();
+        journal.close();
+    }
+
+    @Test
+    public void recoveredJournalIsCompacted() throws IOException {
+
+        RequestJournal journal = open(file);
+        ServiceRequest request = createRequest("text", ServiceRequest.PRIORITY_NORMAL);
+        journal.recordSubmitted(request);
+        writeCrashImage(file, crashed);
+        journal.close();
+
+        // the torn record is dropped, the compacted journal must be readable again
+        open(crashed).close();
+        RequestJournal recovered = open(crashed);
+        assertTrue(recovered.getPendingRequests().isEmpty());
+        assertTrue(recovered.getMaxId() >= request.id);
+        recovered.close();
+    }
+
+    @Test
+    public void removedRequestIsNotReplayed() throws IOException {
+
+        RequestJournal journal = open(file);
+        ServiceRequest kept = createRequest("kept", ServiceRequest.PRIORITY_NORMAL);
+        ServiceRequest removed = createRequest("removed", ServiceRequest.PRIORITY_NORMAL);
+        journal.recordSubmitted(kept);
+        journal.recordSubmitted(removed);
+        journal.remove(removed.id);
+        ServiceResponse response = new ServiceResponse(kept.id);
+        journal.recordCompleted(response);
+        journal.remove(kept.id);
+        journal.close();
+
+        RequestJournal recovered = open(file);
+        assertTrue(recovered.getPendingRequests().isEmpty());
+        assertTrue(recovered.getCompletedResponses().isEmpty());
+        recovered.close();
+    }
+
+    @Test
+    public void dataOutsideOfSchemaIsNotJournaled() throws IOException {
+
+        RequestJournal journal = open(file);
+        ServiceRequest request = createRequest("text", ServiceRequest.PRIORITY_NORMAL);
+        request.data.putLong("custom", 1L);
+        journal.recordSubmitted(request);
+        journal.close();
+
+        RequestJournal recovered = open(file);
+        assertTrue(recovered.getPendingRequests().isEmpty());
+        recovered.close();
+    }
+
+    @Test
+    public void compactionDoesNotDuplicateRecords() throws IOException {
+
+        RequestJournal journal = open(file);
+        char[] text = new char[LARGE_TEXT];
+        Arrays.fill(text, 'a');
+        for (int i = 0; i < LARGE_REQUESTS; i++) {
+            journal.recordSubmitted(createRequest(new String(text), ServiceRequest.PRIORITY_NORMAL));
+        }
+        journal.close();
+
+        List<Integer> ids = readRecordIds(file);
+        assertEquals(LARGE_REQUESTS, ids.size());
+        assertEquals(LARGE_REQUESTS, new HashSet<Integer>(ids).size());
+    }
+
+    @Test
+    public void completionOfUnknownRequestIsNotJournaled() throws IOException {
+
+        RequestJournal journal = open(file);
+        ServiceRequest request = createRequest("text", ServiceRequest.PRIORITY_NORMAL);
+        request.data.putLong("custom", 1L);
+        journal.recordSubmitted(request);
+        ServiceResponse response = new ServiceResponse(request.id);
+        response.data.putString(ServiceResponse.KEY_DATA, "txet");
+        journal.recordCompleted(response);
+        journal.remove(request.id);
+        journal.close();
+
+        assertTrue(readRecordIds(file).isEmpty());
+        RequestJournal recovered = open(file);
+        assertTrue(recovered.getCompletedResponses().isEmpty());
+        recovered.close();
+    }
+
+    /**
+     * Open the journal
+     *
+     * @param file The journal file
+     *
+     * @return The opened journal
+     */
+    private RequestJournal open(File file) throws IOException {
+        RequestJournal journal = new RequestJournal(file, executor);
+        journal.open();
+        return journal;
+    }
+
+    /**
+     * Copy the journal as it would be found after the process died while writing
+     * its last record. The file is zero filled after the last record, so the last
+     * record ends at the last byte that is not zero.
+     *
+     * @param journal   The journal file
+     * @param image     The file to write the image to
+     */
+    private static void writeCrashImage(File journal, File image) throws IOException {
+
+        byte[] bytes = new byte[(int)journal.length()];
+        FileInputStream in = new FileInputStream(journal);
+        try {
+            int read = 0;
+            while (read < bytes.length) {
+                read += in.read(bytes, read, bytes.length - read);
+            }
+        } finally {
+            in.close();
+        }
+        int end = bytes.length;
+        while (end > 0 && bytes[end - 1] == 0) {
+            end--;
+        }
+        Arrays.fill(bytes, end - TORN_BYTES, end, (byte)0);
+
+        FileOutputStream out = new FileOutputStream(image);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Read the request ids of all records in the journal file, a record is
+     * a length, a checksum and a body starting with the kind and request id.
+     *
+     * @param journal The journal file
+     *
+     * @return The request ids in the order of the records
+     */
+    private static List<Integer> readRecordIds(File journal) throws IOException {
+
+        byte[] bytes = new byte[(int)journal.length()];
+        FileInputStream in = new FileInputStream(journal);
+        try {
+            int read = 0;
+            while (read < bytes.length) {
+                read += in.read(bytes, read, bytes.length - read);
+            }
+        } finally {
+            in.close();
+        }
+        ByteBuffer records = ByteBuffer.wrap(bytes);
+        records.position(12);
+        List<Integer> ids = new ArrayList<Integer>();
+        while (records.remaining() >= 8) {
+            int length = records.getInt();
+            if (length <= 0) {
+                break;
+            }
+            records.getInt();
+            int start = records.position();
+            records.get();
+            ids.add(records.getInt());
+            records.position(start + length);
+        }
+        return ids;
+    }
+
+    private static ServiceRequest createRequest(String text, int priority) {
+        ServiceRequest request = new ServiceRequest(ServiceRequest.REQ_REVERSE_TEXT);
+        request.data.putString(ServiceRequest.KEY_DATA, text);
+        request.priority = priority;
+        return request;
+    }
+
+    private static ServiceRequest createBatchRequest(List<String> texts) {
+        ServiceRequest request = new ServiceRequest(ServiceRequest.REQ_REVERSE_TEXT_BATCH);
+        request.data.putStringArrayList(ServiceRequest.KEY_DATA, new ArrayList<String>(texts));
+        return request;
+    }
+
+    private static void assertRequest(ServiceRequest expected, ServiceRequest actual) {
+        assertEquals(expected.id, actual.id);
+        assertEquals(expected.type, actual.type);
+        assertEquals(expected.priority, actual.priority);
+        assertEquals(expected.data.get(ServiceRequest.KEY_DATA), actual.data.get(ServiceRequest.KEY_DATA));
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * This file is part of Siebe Projects samples.
+ *
+ * Siebe Projects samples is free software: you can redistribute it and/or modify
+ * it under the terms of the Lesser GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Siebe Projects samples is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Lesser GNU General Public License for more details.
+ *
+ * You should have received a copy of the Lesser GNU General Public License
+ * along with Siebe Projects samples.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.siebeprojects.samples.controller.service;
+
+import com.siebeprojects.samples.controller.BuildConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sends, cancels and completes requests from many threads at once. Every
+ * request must be completed exactly once and no request may be left behind
+ * in the pending, in-flight or detached maps of the ServiceController.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class ServiceControllerConcurrencyTest {
+
+    /** The number of threads sending, completing and cancelling requests */
+    private final static int SENDERS    = 4;
+    private final static int COMPLETERS = 4;
+    private final static int CANCELLERS = 2;
+
+    /** The number of requests send by every sender */
+    private final static int REQUESTS   = 500;
+
+    /** The number of distinct payloads, identical requests are coalesced */
+    private final static int PAYLOADS   = 16;
+
+    /** The id marking the end of a queue */
+    private final static int END        = 0;
+
+    /** The time in milliseconds to wait for the reaper to drop detached requests */
+    private final static long SETTLE_TIMEOUT = 5000;
+
+    private ServiceController controller;
+
+    @Before
+    public void setUp() {
+        controller = ServiceController.getSingleton();
+        controller.setWarmUp(false);
+        controller.setCacheable(ServiceRequest.REQ_REVERSE_TEXT, false);
+        controller.setDirectExecution(ServiceRequest.REQ_REVERSE_TEXT, true);
+        controller.init(RuntimeEnvironment.application);
+    }
+
+    @After
+    public void tearDown() {
+        controller.stop();
+        controller.setDirectExecution(ServiceRequest.REQ_REVERSE_TEXT, false);
+        controller.setCacheable(ServiceRequest.REQ_REVERSE_TEXT, true);
+        controller.setWarmUp(true);
+    }
+
+    @Test
+    public void everyRequestCompletesOnce() throws Exception {
+
+        final ConcurrentHashMap<Integer, AtomicInteger> completions = new ConcurrentHashMap<Integer, AtomicInteger>();
+        ServiceObserver observer = new ServiceObserver() {
+                @Override
+                public void onServiceRequestCompleted(ServiceResponse response) {
+                    AtomicInteger count = completions.putIfAbsent(response.requestId, new AtomicInteger(1));
+                    if (count != null) {
+                        count.incrementAndGet();
+                    }
+                }
+            };
+        controller.addObserver(observer, null);
+
+        final ConcurrentLinkedQueue<Integer> sent = new ConcurrentLinkedQueue<Integer>();
+        final BlockingQueue<Integer> toComplete = new LinkedBlockingQueue<Integer>();
+        final BlockingQueue<Integer> toCancel = new LinkedBlockingQueue<Integer>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger senders = new AtomicInteger(SENDERS);
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < SENDERS; i++) {
+            final int sender = i;
+            threads.add(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        await(start);
+                        for (int n = 0; n < REQUESTS; n++) {
+                            int id = controller.reverse("text " + ((sender + n) % PAYLOADS));
+                            sent.add(id);
+                            toComplete.add(id);
+                            if (n % 3 == 0) {
+                                toCancel.add(id);
+                            }
+                        }
+                        if (senders.decrementAndGet() == 0) {
+                            for (int c = 0; c < COMPLETERS; c++) {
+                                toComplete.add(END);
+                            }
+                            for (int c = 0; c < CANCELLERS; c++) {
+                                toCancel.add(END);
+                            }
+                        }
+                    }
+                }));
+        }
+        for (int i = 0; i < COMPLETERS; i++) {
+            threads.add(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        await(start);
+                        for (int id = take(toComplete); id != END; id = take(toComplete)) {
+                            ServiceResponse resp = new ServiceResponse(id);
+                            resp.data.putString(ServiceResponse.KEY_DATA, "done");
+                            controller.notifyListeners(id, resp);
+                        }
+                    }
+                }));
+        }
+        for (int i = 0; i < CANCELLERS; i++) {
+            threads.add(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        await(start);
+                        for (int id = take(toCancel); id != END; id = take(toCancel)) {
+                            controller.cancel(id);
+                        }
+                    }
+                }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        settle();
+
+        assertEquals(SENDERS * REQUESTS, sent.size());
+        for (Integer id : sent) {
+            AtomicInteger count = completions.get(id);
+            assertTrue("Request " + id + " not completed", count != null);
+            assertEquals("Completions of request " + id, 1, count.get());
+            assertFalse(controller.isPending(id));
+        }
+        assertEquals(sent.size(), completions.size());
+        assertTrue(getMap("requests").isEmpty());
+        assertTrue(getMap("inflight").isEmpty());
+        assertTrue(getMap("detached").isEmpty());
+    }
+
+    /**
+     * Run the notifications posted to the callback thread and wait until the
+     * reaper dropped the detached requests no other request waits for
+     */
+    private void settle() throws Exception {
+
+        long deadline = System.currentTimeMillis() + SETTLE_TIMEOUT;
+        do {
+            Shadows.shadowOf(ServiceController.getCallbackLooper()).idle();
+            if (getMap("detached").isEmpty() && getMap("inflight").isEmpty()) {
+                return;
+            }
+            Thread.sleep(50);
+        } while (System.currentTimeMillis() < deadline);
+    }
+
+    /**
+     * Get the private map of the controller
+     *
+     * @param name The name of the field
+     *
+     * @return The map
+     */
+    private Map<?, ?> getMap(String name) throws Exception {
+        Field field = ServiceController.class.getDeclaredField(name);
+        field.setAccessible(true);
+        return (Map<?, ?>)field.get(controller);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int take(BlockingQueue<Integer> queue) {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
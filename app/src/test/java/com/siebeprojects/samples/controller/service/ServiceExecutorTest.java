@@ -0,0 +1,133 @@
+/*
+ * This file is part of Siebe Projects samples.
+ *
+ * Siebe Projects samples is free software: you can redistribute it and/or modify
+ * it under the terms of the Lesser GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Siebe Projects samples is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Lesser GNU General Public License for more details.
+ *
+ * You should have received a copy of the Lesser GNU General Public License
+ * along with Siebe Projects samples.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.siebeprojects.samples.controller.service;
+
+import android.util.SparseIntArray;
+
+import com.siebeprojects.samples.controller.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The requests held back by the limit of their type when the executor is shut down
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class ServiceExecutorTest {
+
+    /** The time in seconds to wait for a request */
+    private final static long TIMEOUT = 5;
+
+    /** The number of requests held back by the limit */
+    private final static int WAITING = 3;
+
+    @Test
+    public void waitingRequestsCompleteAfterShutdown() throws Exception {
+
+        SparseIntArray limits = new SparseIntArray();
+        limits.put(ServiceRequest.REQ_REVERSE_TEXT, 1);
+        final CountDownLatch idle = new CountDownLatch(1);
+        ServiceExecutor executor = new ServiceExecutor(2, limits, new ServiceExecutor.Listener() {
+                @Override
+                public void onIdle() {
+                    idle.countDown();
+                }
+            });
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.execute(new ServiceRequest(ServiceRequest.REQ_REVERSE_TEXT), new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    await(release);
+                }
+            });
+        final CountDownLatch completed = new CountDownLatch(WAITING);
+        for (int i = 0; i < WAITING; i++) {
+            executor.execute(new ServiceRequest(ServiceRequest.REQ_REVERSE_TEXT), new Runnable() {
+                    @Override
+                    public void run() {
+                        completed.countDown();
+                    }
+                });
+        }
+        assertTrue(started.await(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(WAITING + 1, executor.getActiveCount());
+
+        executor.shutdown();
+        release.countDown();
+
+        assertTrue("Waiting requests were dropped", completed.await(TIMEOUT, TimeUnit.SECONDS));
+        assertTrue(idle.await(TIMEOUT, TimeUnit.SECONDS));
+        assertTrue(executor.isIdle());
+    }
+
+    @Test
+    public void waitingRequestCompletesAfterFailedTask() throws Exception {
+
+        SparseIntArray limits = new SparseIntArray();
+        limits.put(ServiceRequest.REQ_REVERSE_TEXT, 1);
+        ServiceExecutor executor = new ServiceExecutor(1, limits, new ServiceExecutor.Listener() {
+                @Override
+                public void onIdle() {
+                }
+            });
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.execute(new ServiceRequest(ServiceRequest.REQ_REVERSE_TEXT), new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    await(release);
+                    throw new IllegalStateException("failed");
+                }
+            });
+        final CountDownLatch completed = new CountDownLatch(1);
+        executor.execute(new ServiceRequest(ServiceRequest.REQ_REVERSE_TEXT), new Runnable() {
+                @Override
+                public void run() {
+                    completed.countDown();
+                }
+            });
+        assertTrue(started.await(TIMEOUT, TimeUnit.SECONDS));
+
+        executor.shutdown();
+        release.countDown();
+
+        assertTrue("Waiting request was dropped", completed.await(TIMEOUT, TimeUnit.SECONDS));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * This file is part of Siebe Projects samples.
+ *
+ * Siebe Projects samples is free software: you can redistribute it and/or modify
+ * it under the terms of the Lesser GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Siebe Projects samples is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Lesser GNU General Public License for more details.
+ *
+ * You should have received a copy of the Lesser GNU General Public License
+ * along with Siebe Projects samples.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.siebeprojects.samples.controller.service;
+
+import com.siebeprojects.samples.controller.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * The pool of requests and the allocation budgets of obtaining a request
+ * and of sending and completing a request
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class ServiceRequestPoolTest {
+
+    /** The number of requests obtained and recycled while measuring */
+    private final static int CYCLES  = 10000;
+
+    /** The allowed number of bytes allocated per obtained and recycled request */
+    private final static int BUDGET  = 8;
+
+    /** The number of requests send and completed while measuring the hot path */
+    private final static int REQUESTS = 1000;
+
+    /** 
+     * The allowed number of bytes allocated per request send and completed, this
+     * includes the Intent, the key, the response and the bookkeeping of Robolectric
+     */
+    private final static int REQUEST_BUDGET = 16 * 1024;
+
+    @Test
+    public void obtainReusesRecycledRequest() {
+
+        ServiceRequest request = ServiceRequest.obtain(ServiceRequest.REQ_REVERSE_TEXT);
+        request.data.putString(ServiceRequest.KEY_DATA, "text");
+        request.priority = ServiceRequest.PRIORITY_HIGH;
+        request.deadline = 1000;
+        int id = request.id;
+        request.recycle();
+
+        ServiceRequest reused = ServiceRequest.obtain(ServiceRequest.REQ_REVERSE_TEXT_BATCH);
+        assertSame(request, reused);
+        assertTrue(reused.id != id);
+        assertEquals(ServiceRequest.REQ_REVERSE_TEXT_BATCH, reused.type);
+        assertTrue(reused.data.isEmpty());
+        assertEquals(ServiceRequest.PRIORITY_NORMAL, reused.priority);
+        assertEquals(0, reused.deadline);
+        reused.recycle();
+    }
+
+    @Test
+    public void createdRequestIsNotRecycled() {
+
+        ServiceRequest request = new ServiceRequest(ServiceRequest.REQ_REVERSE_TEXT);
+        request.recycle();
+
+        ServiceRequest obtained = ServiceRequest.obtain(ServiceRequest.REQ_REVERSE_TEXT);
+        assertNotSame(request, obtained);
+        obtained.recycle();
+    }
+
+    @Test
+    public void obtainStaysWithinAllocationBudget() throws Exception {
+
+        assumeTrue("Allocated bytes are not measured by this VM", getAllocatedBytes() >= 0);
+
+        // fill the pool and let the code paths settle before measuring
+        cycle(CYCLES);
+        long before = getAllocatedBytes();
+        cycle(CYCLES);
+        long allocated = getAllocatedBytes() - before;
+
+        assertTrue("Allocated " + allocated + " bytes for " + CYCLES + " requests",
+                   allocated < (long)CYCLES * BUDGET);
+    }
+
+    @Test
+    public void completedRequestIsReused() throws Exception {
+
+        ServiceController controller = initController();
+        try {
+            int id = controller.reverse("text");
+            Object request = getRequests(controller).get(id);
+            complete(controller, id);
+
+            int next = controller.reverse("text");
+            assertTrue(next != id);
+            assertSame(request, getRequests(controller).get(next));
+            complete(controller, next);
+        } finally {
+            stopController(controller);
+        }
+    }
+
+    @Test
+    public void reverseStaysWithinAllocationBudget() throws Exception {
+
+        assumeTrue("Allocated bytes are not measured by this VM", getAllocatedBytes() >= 0);
+
+        ServiceController controller = initController();
+        try {
+            // let the code paths settle before measuring
+            reverse(controller, REQUESTS);
+            long before = getAllocatedBytes();
+            reverse(controller, REQUESTS);
+            long allocated = getAllocatedBytes() - before;
+
+            assertTrue("Allocated " + allocated + " bytes for " + REQUESTS + " requests",
+                       allocated < (long)REQUESTS * REQUEST_BUDGET);
+            assertTrue(getRequests(controller).isEmpty());
+        } finally {
+            stopController(controller);
+        }
+    }
+
+    /**
+     * Initialise the controller so requests are send with an Intent and 
+     * are neither cached nor coalesced with each other
+     *
+     * @return The controller
+     */
+    private static ServiceController initController() {
+        ServiceController controller = ServiceController.getSingleton();
+        controller.setWarmUp(false);
+        controller.setCacheable(ServiceRequest.REQ_REVERSE_TEXT, false);
+        controller.init(RuntimeEnvironment.application);
+        return controller;
+    }
+
+    private static void stopController(ServiceController controller) {
+        controller.stop();
+        controller.setCacheable(ServiceRequest.REQ_REVERSE_TEXT, true);
+        controller.setWarmUp(true);
+    }
+
+    /**
+     * Send requests and complete them as if the service responded
+     *
+     * @param controller    The controller
+     * @param count         The number of requests
+     */
+    private static void reverse(ServiceController controller, int count) {
+        for (int i = 0; i < count; i++) {
+            complete(controller, controller.reverse("text"));
+        }
+    }
+
+    /**
+     * Complete the request as if the service responded
+     *
+     * @param controller    The controller
+     * @param id            The id of the request
+     */
+    private static void complete(ServiceController controller, int id) {
+        ServiceResponse response = new ServiceResponse(id);
+        response.data.putString(ServiceResponse.KEY_DATA, "txet");
+        controller.notifyListeners(id, response);
+    }
+
+    /**
+     * Get the pending requests of the controller
+     *
+     * @param controller The controller
+     *
+     * @return The pending requests by id
+     */
+    private static Map<?, ?> getRequests(ServiceController controller) throws Exception {
+        Field field = ServiceController.class.getDeclaredField("requests");
+        field.setAccessible(true);
+        return (Map<?, ?>)field.get(controller);
+    }
+
+    /**
+     * Obtain and recycle requests
+     *
+     * @param count The number of requests
+     */
+    private static void cycle(int count) {
+        for (int i = 0; i < count; i++) {
+            ServiceRequest request = ServiceRequest.obtain(ServiceRequest.REQ_REVERSE_TEXT);
+            request.priority = ServiceRequest.PRIORITY_HIGH;
+            request.recycle();
+        }
+    }
+
+    /**
+     * Get the number of bytes allocated by the current thread. The management
+     * interface is looked up by reflection, it is not part of the Android API.
+     *
+     * @return The number of bytes or -1 if the VM does not measure them
+     */
+    private static long getAllocatedBytes() throws Exception {
+
+        Class<?> factory;
+        Class<?> bean;
+        try {
+            factory = Class.forName("java.lang.management.ManagementFactory");
+            bean = Class.forName("com.sun.management.ThreadMXBean");
+        } catch (ClassNotFoundException e) {
+            return -1;
+        }
+        Object threads = factory.getMethod("getThreadMXBean").invoke(null);
+        if (!bean.isInstance(threads)) {
+            return -1;
+        }
+        Method method = bean.getMethod("getThreadAllocatedBytes", long.class);
+        return (Long)method.invoke(threads, Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * This file is part of Siebe Projects samples.
+ *
+ * Siebe Projects samples is free software: you can redistribute it and/or modify
+ * it under the terms of the Lesser GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Siebe Projects samples is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Lesser GNU General Public License for more details.
+ *
+ * You should have received a copy of the Lesser GNU General Public License
+ * along with Siebe Projects samples.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.siebeprojects.samples.controller.service;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.siebeprojects.samples.controller.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trips of requests, responses and data bundles through the wire format
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class WireFormatTest {
+
+    /** Texts covering every string encoding, including surrogate pairs and an unpaired surrogate */
+    private final static String[] TEXTS = {
+        "",
+        "plain ascii",
+        "caf\u00e9 na\u00efve",
+        "\u4e2d\u6587\u6587\u672c\u4e2d\u6587\u6587\u672c",
+        "smile \ud83d\ude00 and \ud83d\ude01",
+        "unpaired \ud83d and \ude00 surrogates"
+    };
+
+    @Test
+    public void singleRequest() {
+
+        for (String text : TEXTS) {
+            ServiceRequest request = new ServiceRequest(ServiceRequest.REQ_REVERSE_TEXT);
+            request.data.putString(ServiceRequest.KEY_DATA, text);
+            request.priority = ServiceRequest.PRIORITY_HIGH;
+            request.deadline = 123456789L;
+            request.sent = 987654321L;
+
+            assertNotNull(WireFormat.encode(request.data));
+            ServiceRequest copy = roundTrip(request, ServiceRequest.CREATOR);
+            assertEquals(request.id, copy.id);
+            assertEquals(request.type, copy.type);
+            assertEquals(request.priority, copy.priority);
+            assertEquals(request.deadline, copy.deadline);
+            assertEquals(request.sent, copy.sent);
+            assertEquals(text, copy.data.getString(ServiceRequest.KEY_DATA));
+            assertEquals(1, copy.data.size());
+            assertFalse(copy.isStreaming());
+        }
+    }
+
+    @Test
+    public void batchRequest() {
+
+        ArrayList<String> texts = new ArrayList<String>(Arrays.asList(TEXTS));
+        texts.add(null);
+        texts.add(1, null);
+        ServiceRequest request = new ServiceRequest(ServiceRequest.REQ_REVERSE_TEXT_BATCH);
+        request.data.putStringArrayList(ServiceRequest.KEY_DATA, texts);
+
+        ServiceRequest copy = roundTrip(request, ServiceRequest.CREATOR);
+        assertEquals(ServiceRequest.REQ_REVERSE_TEXT_BATCH, copy.type);
+        assertEquals(texts, copy.data.getStringArrayList(ServiceRequest.KEY_DATA));
+    }
+
+    @Test
+    public void emptyBatchRequest() {
+
+        ServiceRequest request = new ServiceRequest(ServiceRequest.REQ_REVERSE_TEXT_BATCH);
+        request.data.putStringArrayList(ServiceRequest.KEY_DATA, new ArrayList<String>());
+
+        ServiceRequest copy = roundTrip(request, ServiceRequest.CREATOR);
+        assertTrue(copy.data.getStringArrayList(ServiceRequest.KEY_DATA).isEmpty());
+    }
+
+    @Test
+    public void streamRequest() {
+
+        int[] sizes = { 1, 127, 128, 16384, Integer.MAX_VALUE };
+        for (int size : sizes) {
+            ServiceRequest request = new ServiceRequest(ServiceRequest.REQ_REVERSE_TEXT_STREAM);
+            request.data.putString(ServiceRequest.KEY_DATA, TEXTS[4]);
+            request.data.putInt(ServiceRequest.KEY_CHUNK_SIZE, size);
+
+            ServiceRequest copy = roundTrip(request, ServiceRequest.CREATOR);
+            assertEquals(size, copy.data.getInt(ServiceRequest.KEY_CHUNK_SIZE));
+            assertEquals(TEXTS[4], copy.data.getString(ServiceRequest.KEY_DATA));
+            assertTrue(copy.isStreaming());
+        }
+    }
+
+    @Test
+    public void negativeIntegers() {
+
+        int[] values = { -1, -64, -65, Integer.MIN_VALUE };
+        for (int value : values) {
+            Bundle data = new Bundle();
+            data.putInt(ServiceRequest.KEY_CHUNK_SIZE, value);
+            assertEquals(value, WireFormat.decode(WireFormat.encode(data)).getInt(ServiceRequest.KEY_CHUNK_SIZE));
+        }
+    }
+
+    @Test
+    public void payloadReference() {
+
+        String path = "/data/data/com.siebeprojects.samples.controller/cache/payloads/payload123.tmp";
+        ServiceRequest request = new ServiceRequest(ServiceRequest.REQ_REVERSE_TEXT);
+        request.data.putString(ServiceRequest.KEY_DATA + PayloadStore.SUFFIX_REF, path);
+
+        assertNotNull(WireFormat.encode(request.data));
+        ServiceRequest copy = roundTrip(request, ServiceRequest.CREATOR);
+        assertEquals(path, copy.data.getString(ServiceRequest.KEY_DATA + PayloadStore.SUFFIX_REF));
+        assertFalse(copy.data.containsKey(ServiceRequest.KEY_DATA));
+    }
+
+    @Test
+    public void nullValue() {
+
+        Bundle data = new Bundle();
+        data.putString(ServiceRequest.KEY_DATA, null);
+
+        Bundle copy = WireFormat.decode(WireFormat.encode(data));
+        assertTrue(copy.containsKey(ServiceRequest.KEY_DATA));
+        assertNull(copy.getString(ServiceRequest.KEY_DATA));
+    }
+
+    @Test
+    public void unknownKeysFallBackToBundle() {
+
+        ServiceRequest request = new ServiceRequest(ServiceRequest.REQ_REVERSE_TEXT);
+        request.data.putString(ServiceRequest.KEY_DATA, TEXTS[1]);
+        request.data.putLong("custom", 42L);
+
+        assertNull(WireFormat.encode(request.data));
+        ServiceRequest copy = roundTrip(request, ServiceRequest.CREATOR);
+        assertEquals(TEXTS[1], copy.data.getString(ServiceRequest.KEY_DATA));
+        assertEquals(42L, copy.data.getLong("custom"));
+    }
+
+    @Test
+    public void responseStatuses() {
+
+        for (int status = ServiceResponse.STATUS_OK; status <= ServiceResponse.STATUS_UNSUPPORTED; status++) {
+            ServiceResponse response = new ServiceResponse(status + 100);
+            if (status == ServiceResponse.STATUS_OK) {
+                response.data.putString(ServiceResponse.KEY_DATA, TEXTS[3]);
+            } else {
+                response.setError("failed with " + status);
+                response.status = status;
+            }
+            response.received = 1;
+            response.started = 2;
+            response.completed = 3;
+
+            ServiceResponse copy = roundTrip(response, ServiceResponse.CREATOR);
+            assertEquals(response.requestId, copy.requestId);
+            assertEquals(status, copy.status);
+            assertTrue(copy.complete);
+            assertEquals(1, copy.received);
+            assertEquals(2, copy.started);
+            assertEquals(3, copy.completed);
+            if (status == ServiceResponse.STATUS_OK) {
+                assertEquals(TEXTS[3], copy.data.getString(ServiceResponse.KEY_DATA));
+            } else {
+                assertEquals("failed with " + status, copy.data.getString(ServiceResponse.KEY_ERROR));
+            }
+        }
+    }
+
+    @Test
+    public void responseChunks() {
+
+        for (int sequence = 0; sequence < 300; sequence += 37) {
+            ServiceResponse chunk = new ServiceResponse(7);
+            chunk.sequence = sequence;
+            chunk.complete = false;
+            chunk.data.putString(ServiceResponse.KEY_DATA, TEXTS[4]);
+
+            ServiceResponse copy = roundTrip(chunk, ServiceResponse.CREATOR);
+            assertEquals(sequence, copy.sequence);
+            assertFalse(copy.complete);
+            assertEquals(TEXTS[4], copy.data.getString(ServiceResponse.KEY_DATA));
+        }
+    }
+
+    @Test
+    public void batchResponseWithNullItems() {
+
+        ArrayList<String> results = new ArrayList<String>(Arrays.asList("a", null, TEXTS[2], null));
+        ArrayList<String> errors = new ArrayList<String>(Arrays.asList(null, "Text cannot be null or empty", null, "failed"));
+        ServiceResponse response = new ServiceResponse(11);
+        response.data.putStringArrayList(ServiceResponse.KEY_DATA, results);
+        response.data.putStringArrayList(ServiceResponse.KEY_ERRORS, errors);
+
+        ServiceResponse copy = roundTrip(response, ServiceResponse.CREATOR);
+        assertEquals(results, copy.data.getStringArrayList(ServiceResponse.KEY_DATA));
+        assertEquals(errors, copy.data.getStringArrayList(ServiceResponse.KEY_ERRORS));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unsupportedVersion() {
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            new ServiceResponse(1).writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            parcel.writeInt(WireFormat.VERSION + 1);
+            parcel.setDataPosition(0);
+            ServiceResponse.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Write the Parcelable to a parcel and read it back
+     *
+     * @param parcelable    The Parcelable to write
+     * @param creator       The creator reading it back
+     *
+     * @return The copy read back
+     */
+    private static <T> T roundTrip(Parcelable parcelable, Parcelable.Creator<T> creator) {
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcelable.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return creator.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+}